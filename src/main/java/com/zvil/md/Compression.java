@@ -0,0 +1,88 @@
+package com.zvil.md;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Threshold based compression of message subjects and parameter values.
+ * <p>
+ * A compressed string is stored as a marker character, the tag of the codec (see {@link CompressionCodec#getTag()}) and
+ * the Base64 form of the compressed UTF-8 bytes, so it can be kept in memory and persisted in the same string columns as
+ * an uncompressed one. An uncompressed string that happens to start with the marker is stored with an extra marker in
+ * front. Strings shorter than the threshold, or that do not get shorter when compressed, are stored as is.
+ * <p>
+ * Every codec that was configured is kept by its tag, so stored strings are decompressed by the codec that compressed
+ * them, also after compression was disabled or another codec was configured.
+ * @author Zvi Lifshitz
+ */
+final class Compression {
+    private static final char MARKER = '\u0001';
+    private static final CompressionCodec DEFAULT_CODEC = new DeflateCodec();
+    private static final Map<Character, CompressionCodec> codecs = new ConcurrentHashMap<>();
+    private static volatile int threshold = 0;
+    private static volatile CompressionCodec codec = DEFAULT_CODEC;
+
+    static {
+        codecs.put(DEFAULT_CODEC.getTag(), DEFAULT_CODEC);
+    }
+
+    private Compression() {
+    }
+
+    /**
+     * Set the compression parameters.
+     * @param threshold the minimal string length to compress, or 0 to disable compression
+     * @param codec     the codec. If null the default {@link DeflateCodec} is used, unless compression is disabled, in
+     *                  which case the current codec is kept.
+     * @throws IllegalArgumentException if the codec tag is the marker character
+     */
+    static void configure(int threshold, CompressionCodec codec) throws IllegalArgumentException {
+        if (codec != null) {
+            if (codec.getTag() == MARKER)
+                throw new IllegalArgumentException("Invalid compression codec tag");
+            codecs.put(codec.getTag(), codec);
+            Compression.codec = codec;
+        } else if (threshold > 0)
+            Compression.codec = DEFAULT_CODEC;
+        Compression.threshold = Math.max(threshold, 0);
+    }
+
+    /**
+     * Convert a string to its stored form.
+     * @param s the string (can be null)
+     * @return the stored form
+     */
+    static String encode(String s) {
+        if (s == null || s.isEmpty())
+            return s;
+        int limit = threshold;
+        if (limit > 0 && s.length() >= limit) {
+            CompressionCodec current = codec;
+            byte[] compressed = current.compress(s.getBytes(StandardCharsets.UTF_8));
+            String encoded = MARKER + (current.getTag() + Base64.getEncoder().encodeToString(compressed));
+            if (encoded.length() < s.length())
+                return encoded;
+        }
+        return s.charAt(0) == MARKER ? MARKER + s : s;
+    }
+
+    /**
+     * Convert a stored string back to its original form.
+     * @param s the stored form (can be null)
+     * @return the string
+     * @throws IllegalStateException if the string was compressed by a codec that was not configured
+     */
+    static String decode(String s) throws IllegalStateException {
+        if (s == null || s.isEmpty() || s.charAt(0) != MARKER)
+            return s;
+        if (s.length() > 1 && s.charAt(1) == MARKER)
+            return s.substring(1);
+        CompressionCodec decoder = s.length() > 1 ? codecs.get(s.charAt(1)) : null;
+        if (decoder == null)
+            throw new IllegalStateException("No compression codec for stored value");
+        byte[] compressed = Base64.getDecoder().decode(s.substring(2));
+        return new String(decoder.decompress(compressed), StandardCharsets.UTF_8);
+    }
+}
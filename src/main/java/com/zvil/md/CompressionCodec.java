@@ -0,0 +1,33 @@
+package com.zvil.md;
+
+/**
+ * Implement this interface to plug a compression algorithm into the dispatcher (see
+ * {@link Dispatcher#setCompression(int, com.zvil.md.CompressionCodec) Dispatcher.setCompression()}).
+ * <p>
+ * Compressed values are persisted with the tag of the codec that compressed them, so a codec must remain available, with
+ * the same tag and format, for as long as messages compressed with it are awaiting. After a restart, every codec that
+ * compressed awaiting messages must be configured again before they are read.
+ * @author Zvi Lifshitz
+ */
+public interface CompressionCodec {
+
+    /**
+     * Compress data.
+     * @param data  the uncompressed data
+     * @return      the compressed data
+     */
+    byte[] compress(byte[] data);
+
+    /**
+     * Decompress data that was compressed by {@link #compress(byte[])}.
+     * @param data  the compressed data
+     * @return      the uncompressed data
+     */
+    byte[] decompress(byte[] data);
+
+    /**
+     * @return a character that identifies the codec in compressed values. Codecs in use must have different tags. The
+     *         default codec uses 'D', and '\u0001' is reserved.
+     */
+    char getTag();
+}
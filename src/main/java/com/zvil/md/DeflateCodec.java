@@ -0,0 +1,54 @@
+package com.zvil.md;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The default compression codec, based on the JDK's {@link Deflater}. Deflater and inflater objects are kept per
+ * thread and reused, as creating them is relatively expensive.
+ * @author Zvi Lifshitz
+ */
+class DeflateCodec implements CompressionCodec {
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    @Override
+    public char getTag() {
+        return 'D';
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        byte[] buffer = new byte[Math.min(data.length + 16, 8192)];
+        while (!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IllegalArgumentException("Truncated compressed data");
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed data", e);
+        }
+        return out.toByteArray();
+    }
+}
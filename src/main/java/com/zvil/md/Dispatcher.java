@@ -1,7 +1,22 @@
 package com.zvil.md;
 
 import io.jsonwebtoken.SignatureException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
@@ -14,11 +29,31 @@ import javax.persistence.TypedQuery;
  */
 public class Dispatcher {
     private static final String IMPROPER_INITIALIZATION = "Message dispatcher was not initialized properly";
+    private static final int BULK_DELETE_LIMIT = 500;     // serials per bulk delete statement
+    private static final int SPILL_FLUSH_BATCH = 1024;    // unwritten spilled messages that trigger a flush
+    private static final String NO_SNAPSHOTS = "Message dispatcher was not initialized with persistence and a snapshot file";
+    private static final String SNAPSHOT_LOST = "The snapshot was lost by a failure, a new one is written on the next init()";
+    private static final Logger LOGGER = Logger.getLogger(Dispatcher.class.getName());
     private static JwtService jwtService = null;
     private static EntityManager entityManager = null;
     private static EntityTransaction tx;
-    private static final ConcurrentHashMap<Integer, Sender> senderMap = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<Integer, Receiver> receiverMap = new ConcurrentHashMap<>();
+    private static final IntObjectMap<Sender> senderMap = new IntObjectMap<>();
+    private static final IntObjectMap<Receiver> receiverMap = new IntObjectMap<>();
+    private static final Object checkpointLock = new Object();
+    private static Path snapshotFile = null;
+    private static ScheduledExecutorService checkpointer = null;
+    // Changes since the last checkpoint, merged into the snapshot by the next one. Null log if snapshots are not written.
+    private static DataOutputStream log = null;
+    private static final List<Message> unlogged = new ArrayList<>();     // persisted messages not in the log yet
+    private static long[] removedSerials = new long[64];
+    private static int removedCount = 0;
+    private static final TimingWheel<Delivery> scheduler =
+        new TimingWheel<>("message-dispatcher-scheduler", 10, d -> d.receiver.promote(d.idHigh, d.idLow));
+    private static volatile int receiverHeapBudget = 0;
+    private static volatile long globalHeapBudget = 0;
+    private static final LongAdder heapMessages = new LongAdder();
+    private static final MessageIdMap<Message> unwrittenSpilled = new MessageIdMap<>();
+    private static volatile boolean fairQueuing = false;
 
     /**
      * Initializes the message repository including restoring from a persistent medium.
@@ -26,26 +61,120 @@ public class Dispatcher {
      * @param persistenceManager    The name of the implemented persistence provider. Can be null if persistence is not implemented.
      */
     public static void init(String jwtSecret, String persistenceManager) {
+        init(jwtSecret, persistenceManager, null, 0);
+    }
+    
+    /**
+     * Initializes the message repository including restoring from a persistent medium, using snapshots to speed up the restore.
+     * <p>
+     * If the snapshot file exists, the messages are restored from it and only the messages sent after it was taken are read from
+     * the persistence medium. If it does not exist or is not readable, everything is restored from the persistence medium.
+     * Either way, the snapshot file is rewritten with the restored messages, and then kept up to date by {@link #checkpoint()}
+     * and {@link #cleanup()}.
+     * @param jwtSecret A secret string used by the dispatcher to initialize a JWT authentication service.
+     * @param persistenceManager    The name of the implemented persistence provider. Can be null if persistence is not implemented.
+     * @param snapshotFile          The snapshot file. Can be null if snapshots are not used.
+     * @param checkpointInterval    Interval in milliseconds between periodic calls to {@link #checkpoint()}, or 0 to call it only
+     *                              on demand.
+     */
+    public static void init(String jwtSecret, String persistenceManager, Path snapshotFile, long checkpointInterval) {
         jwtService = new JwtService(jwtSecret);
+        Dispatcher.snapshotFile = persistenceManager != null ? snapshotFile : null;
         if (persistenceManager != null) {
             restoreFromPersistence(persistenceManager);
             tx = entityManager.getTransaction();
             tx.begin();
+            if (snapshotFile != null && checkpointInterval > 0) {
+                checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "message-dispatcher-checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                checkpointer.scheduleWithFixedDelay(Dispatcher::periodicCheckpoint, checkpointInterval, checkpointInterval,
+                    TimeUnit.MILLISECONDS);
+            }
         }
     }
     
     private static void restoreFromPersistence(String persistenceManager) {
         EntityManagerFactory emFactory = Persistence.createEntityManagerFactory(persistenceManager);
         entityManager = emFactory.createEntityManager();
-        TypedQuery<Message> query = entityManager.createQuery("SELECT m FROM Message AS m ORDER BY m.serial", Message.class);
-        query.getResultStream().forEach(m -> {
-            Sender sender = createSender(m.getSenderID());
-            Receiver receiver = createReceiver(m.getReceiverID());
-            m.setSender(sender);
-            m.setReceiver(receiver);
-            sender.addMessage(m);
-            receiver.addMessage(m);
-        });
+        Snapshot snapshot = null;
+        if (snapshotFile != null) {
+            try {
+                snapshot = Snapshot.read(snapshotFile);
+            } catch (IOException e) {
+                // Fall back to a full restore
+            }
+        }
+        // Everything if there is no snapshot, otherwise the snapshot and the messages sent after it was taken
+        long mark = snapshot == null ? 0 : snapshot.getMark();
+        TypedQuery<Message> query = entityManager.createQuery(
+            "SELECT m FROM Message AS m WHERE m.serial > :mark ORDER BY m.serial", Message.class);
+        query.setParameter("mark", mark);
+        // The restored messages are written to a new snapshot, the base for the snapshots taken by checkpoint()
+        Snapshot.Writer writer = null;
+        if (snapshotFile != null) {
+            deleteSnapshotFiles(sibling(".prev"), sibling(".merge"), sibling(".log"));
+            writer = createBase(mark);
+        }
+        if (snapshot != null) {
+            for (Message m : snapshot.getMessages())
+                writer = restoreMessage(m, writer);
+        }
+        for (Message m : (Iterable<Message>) query.getResultStream()::iterator)
+            writer = restoreMessage(m, writer);
+        if (writer != null) {
+            try (Snapshot.Writer base = writer) {
+                base.commit();
+                openLog();
+            } catch (IOException e) {
+                snapshotLost(e);
+            }
+        }
+    }
+    
+    private static Snapshot.Writer createBase(long mark) {
+        try {
+            Long max = entityManager.createQuery("SELECT MAX(m.serial) FROM Message AS m", Long.class).getSingleResult();
+            return new Snapshot.Writer(snapshotFile, max == null ? mark : Math.max(max, mark));
+        } catch (IOException e) {
+            snapshotLost(e);
+            return null;
+        }
+    }
+    
+    /**
+     * Restore a message and write it to the base snapshot.
+     * @param m         the message
+     * @param writer    the base snapshot writer, or null if it is not written
+     * @return the writer, or null if writing failed
+     */
+    private static Snapshot.Writer restoreMessage(Message m, Snapshot.Writer writer) {
+        if (writer != null) {
+            try {
+                writer.write(m);
+            } catch (IOException e) {
+                try {
+                    writer.close();
+                } catch (IOException ce) {
+                    e.addSuppressed(ce);
+                }
+                snapshotLost(e);
+                writer = null;
+            }
+        }
+        restoreMessage(m);
+        return writer;
+    }
+    
+    private static void restoreMessage(Message m) {
+        Sender sender = createSender(m.getSenderID());
+        Receiver receiver = createReceiver(m.getReceiverID());
+        m.setSender(sender);
+        m.setReceiver(receiver);
+        sender.addMessage(m);
+        receiver.addMessage(m);
     }
     
     /**
@@ -98,13 +227,192 @@ public class Dispatcher {
         return receiverMap.computeIfAbsent(userID, id -> new Receiver(id));
     }
     
+    /**
+     * Enable or disable compression of message subjects and parameter values. Strings at least as long as the threshold are
+     * compressed when they are set in a message, kept compressed in memory and persisted in compressed form. They are
+     * decompressed only when read through {@link Message#getSubject()} or {@link Message#getParam(java.lang.String)}.
+     * <p>
+     * Messages that were compressed before compression was disabled or the codec was replaced remain readable, as compressed
+     * values are tagged with their codec (see {@link CompressionCodec#getTag()}). A custom codec must be set again after a
+     * restart, before messages compressed with it are read; it can be set with threshold 0 just to read them.
+     * @param threshold The minimal length of strings to compress, or 0 to disable compression.
+     * @param codec     The compression codec. Can be null to use the default, based on {@link java.util.zip.Deflater}, or
+     *                  to keep the current codec when compression is disabled.
+     * @throws IllegalArgumentException if the codec tag is reserved
+     */
+    public static void setCompression(int threshold, CompressionCodec codec) throws IllegalArgumentException {
+        Compression.configure(threshold, codec);
+    }
+    
+    /**
+     * Enable tiered inboxes by setting heap budgets for queued messages. When a receiver has more queued messages on the
+     * heap than its budget, or all receivers together have more than the global budget, new messages are spilled to
+     * off-heap storage in a compact serialized form. Spilled messages are paged back into the heap ahead of
+     * {@link Receiver#getNextMessage()} and can still be retrieved or removed by their ID.
+     * <p>
+     * Budgets count messages. Leased and scheduled messages are not counted. The global budget also limits paging in:
+     * once it is exhausted, a receiver pages in a message only when its head is empty, so all receivers together may
+     * exceed the global budget by at most one message each.
+     * @param perReceiver   Maximal number of queued messages kept on the heap per receiver, or 0 for no limit.
+     * @param global        Maximal number of queued messages kept on the heap by all receivers, or 0 for no limit.
+     */
+    public static void setInboxBudget(int perReceiver, long global) {
+        receiverHeapBudget = Math.max(perReceiver, 0);
+        globalHeapBudget = Math.max(global, 0);
+    }
+    
+    static int getReceiverHeapBudget() {
+        return receiverHeapBudget;
+    }
+    
+    /**
+     * @return true if heap budgets are set
+     */
+    static boolean isTiered() {
+        return receiverHeapBudget > 0 || globalHeapBudget > 0;
+    }
+    
+    /**
+     * @return true if the global heap budget is set and exhausted
+     */
+    static boolean isGlobalBudgetExhausted() {
+        long budget = globalHeapBudget;
+        return budget > 0 && heapMessages.sum() >= budget;
+    }
+    
+    /**
+     * Update the global count of queued messages on the heap.
+     * @param delta the change
+     */
+    static void addHeapMessages(int delta) {
+        heapMessages.add(delta);
+    }
+    
+    /**
+     * @return the number of bytes of off-heap memory held by spilled messages (see {@link #setInboxBudget(int, long)
+     *         setInboxBudget()}).
+     */
+    public static long getOffHeapBytes() {
+        return SpillStore.getOffHeapBytes();
+    }
+    
+    /**
+     * Enable or disable fair queuing. With fair queuing, each receiver keeps a separate queue of messages per sender and
+     * {@link Receiver#getNextMessage()} serves the senders by weighted round robin (see {@link #setSenderWeight(int, int)
+     * setSenderWeight()}), so a sender that floods a receiver does not hold back the messages of other senders. The
+     * messages of each sender are still received in the order they were sent.
+     * <p>
+     * The setting applies to receivers created after the call, so it should be set before
+     * {@link #init(java.lang.String, java.lang.String) init()}.
+     * @param enable    true to enable fair queuing
+     */
+    public static void setFairQueuing(boolean enable) {
+        fairQueuing = enable;
+    }
+    
+    static boolean isFairQueuing() {
+        return fairQueuing;
+    }
+    
+    /**
+     * Set the weight of a sender for fair queuing. In every round a sender with weight n gets up to n messages received
+     * from each receiver's queue. Weights are kept in memory only and are lost on {@link #cleanup()}.
+     * @param senderID  Sender ID
+     * @param weight    The weight, 1 by default. Values below 1 are treated as 1.
+     */
+    public static void setSenderWeight(int senderID, int weight) {
+        createSender(senderID).setWeight(weight);
+    }
+    
+    /**
+     * A scheduled delivery. Only the message ID is kept, so a message removed before its delivery time is not held on
+     * the heap until then.
+     */
+    private static final class Delivery {
+        final Receiver receiver;
+        final long idHigh;
+        final long idLow;
+
+        Delivery(Message message) {
+            receiver = message.getReceiver();
+            idHigh = message.getIdHigh();
+            idLow = message.getIdLow();
+        }
+    }
+    
+    /**
+     * Schedule the delivery of a message at its delivery time.
+     * @param message 
+     */
+    static void schedule(Message message) {
+        scheduler.schedule(message.getDeliverAt(), new Delivery(message));
+    }
+    
     /**
      * Persist a message
      * @param message 
      */
-    static void persist(Message message) {
+    static synchronized void persist(Message message) {
         if (entityManager != null) {
             entityManager.persist(message);
+            if (log != null)
+                unlogged.add(message);
+        }
+    }
+    
+    /**
+     * Detach a persisted message from the entity manager before it is spilled, so the entity manager does not keep it on
+     * the heap. A message that was not written yet stays managed, and is spilled with serial 0, until it is written by
+     * {@link #flushSpilled(boolean) flushSpilled()}; this spares a flush per spilled message.
+     * @param message 
+     */
+    static synchronized void detach(Message message) {
+        if (entityManager != null && entityManager.contains(message)) {
+            if (message.getSerial() == 0) {
+                unwrittenSpilled.put(message.getIdHigh(), message.getIdLow(), message);
+                return;
+            }
+            message.getStoredParams().size();       // load lazily fetched parameters
+            entityManager.detach(message);
+        }
+    }
+    
+    /**
+     * Called when the record of a spilled message that was not written yet is taken from the spilled tier, under the
+     * lock of the spilled tier.
+     * @param message   the message decoded from the record
+     * @return the managed instance of the message, or the given message if it was already written and detached.
+     */
+    static synchronized Message unspill(Message message) {
+        Message managed = unwrittenSpilled.remove(message.getIdHigh(), message.getIdLow(), null);
+        return managed != null ? managed : message;
+    }
+    
+    /**
+     * Write the spilled messages that were not written yet, set their serials in their records and detach them.
+     * Must not be called under the lock of a spilled tier.
+     * @param all   true to write them all, false to write them only if a full batch is waiting
+     */
+    static void flushSpilled(boolean all) {
+        List<Message> written = new ArrayList<>();
+        synchronized (Dispatcher.class) {
+            if (entityManager == null || unwrittenSpilled.isEmpty() || (!all && unwrittenSpilled.size() < SPILL_FLUSH_BATCH))
+                return;
+            entityManager.flush();
+            logWritten();
+            unwrittenSpilled.forEach(m -> {
+                if (m.getSerial() != 0)
+                    written.add(m);
+            });
+        }
+        // Once its record has a serial, a message is taken from the spilled tier as decoded, so it can be detached
+        for (Message m : written)
+            m.getReceiver().setSpilledSerial(m);
+        synchronized (Dispatcher.class) {
+            for (Message m : written) {
+                if (entityManager != null && entityManager.contains(m))
+                    entityManager.detach(m);
+            }
         }
     }
     
@@ -112,9 +420,219 @@ public class Dispatcher {
      * Remove a message from persistence medium
      * @param message 
      */
-    static void remove(Message message) {
-        if (entityManager != null)
-            entityManager.remove(message);
+    static synchronized void remove(Message message) {
+        if (entityManager != null) {
+            entityManager.remove(managed(message));
+            logRemoved(message);
+        }
+    }
+    
+    /**
+     * Remove a batch of messages from persistence medium. Messages that were already written are deleted by two bulk
+     * statements (parameters and messages) per {@value #BULK_DELETE_LIMIT} messages, instead of a delete per message and
+     * parameter row. Messages that were not written yet are just removed from the persistence context.
+     * @param messages 
+     */
+    static synchronized void remove(Collection<Message> messages) {
+        if (entityManager == null || messages.isEmpty())
+            return;
+        StringBuilder serials = new StringBuilder();
+        int count = 0;
+        for (Message m : messages) {
+            if (m.getSerial() == 0) {
+                entityManager.remove(m);        // cancels the pending insert
+                continue;
+            }
+            if (entityManager.contains(m))
+                entityManager.detach(m);
+            logRemoved(m);
+            serials.append(count == 0 ? "" : ",").append(m.getSerial());
+            if (++count == BULK_DELETE_LIMIT) {
+                bulkDelete(serials.toString());
+                serials.setLength(0);
+                count = 0;
+            }
+        }
+        if (count > 0)
+            bulkDelete(serials.toString());
+    }
+    
+    /**
+     * Delete messages and their parameters by serial, bypassing the persistence context.
+     * @param serials comma separated serials
+     */
+    private static void bulkDelete(String serials) {
+        entityManager.createNativeQuery("DELETE FROM message_params WHERE msg_serial IN (" + serials + ")").executeUpdate();
+        entityManager.createNativeQuery("DELETE FROM messages WHERE serial IN (" + serials + ")").executeUpdate();
+    }
+    
+    /**
+     * Messages restored from a snapshot are not managed by the entity manager. Get the managed instance of such a message.
+     * @param message
+     * @return the message itself if it is managed, otherwise a reference to the persisted message with the same serial.
+     */
+    private static Message managed(Message message) {
+        return entityManager.contains(message) ? message : entityManager.getReference(Message.class, message.getSerial());
+    }
+    
+    /**
+     * Commit the pending changes to the persistence medium and update the snapshot file given to
+     * {@link #init(java.lang.String, java.lang.String, java.nio.file.Path, long) init()}. The next restore only needs to read
+     * messages sent after the checkpoint. Called periodically if a checkpoint interval was given, and can also be called
+     * directly, e.g. before a planned shutdown.
+     * <p>
+     * The snapshot is not taken from the in-memory queues. It is merged from the previous snapshot and the messages written
+     * and deleted since then, so it holds exactly the messages that were committed, and it takes time proportional to the
+     * snapshot size without holding up other operations.
+     * @throws IOException              if updating the snapshot fails. The changes are still committed, but the snapshot is
+     *                                  deleted and not written again until the next init().
+     * @throws IllegalStateException    if the message dispatcher was not initialized with persistence and a snapshot file.
+     */
+    public static void checkpoint() throws IOException, IllegalStateException {
+        synchronized (checkpointLock) {
+            long mark;
+            long[] removed;
+            synchronized (Dispatcher.class) {
+                // Until the new snapshot is written the previous one is set aside, so a crash leads to a full restore
+                // instead of restoring messages deleted by this commit
+                if (log != null) {
+                    try {
+                        Files.move(snapshotFile, sibling(".prev"), StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        snapshotLost(e);
+                    }
+                }
+                mark = commit();
+                if (log == null)
+                    throw new IOException(SNAPSHOT_LOST);
+                removed = Arrays.copyOf(removedSerials, removedCount);
+                removedCount = 0;
+                try {
+                    log.close();
+                    Files.move(sibling(".log"), sibling(".merge"), StandardCopyOption.REPLACE_EXISTING);
+                    openLog();
+                } catch (IOException e) {
+                    snapshotLost(e);
+                    throw e;
+                }
+            }
+            flushSpilled(true);     // detach the spilled messages written by the commit
+            Arrays.sort(removed);
+            try {
+                Snapshot.merge(sibling(".prev"), sibling(".merge"), removed, mark, snapshotFile);
+                Files.delete(sibling(".prev"));
+                Files.delete(sibling(".merge"));
+            } catch (IOException e) {
+                synchronized (Dispatcher.class) {
+                    snapshotLost(e);
+                }
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Commit the current transaction and start a new one. A new transaction is started even if the commit fails.
+     * @return the highest serial committed so far
+     */
+    private static synchronized long commit() {
+        if (entityManager == null || snapshotFile == null)
+            throw new IllegalStateException(NO_SNAPSHOTS);
+        try {
+            tx.commit();
+        } catch (RuntimeException e) {
+            snapshotLost(e);            // the log may hold messages that were not committed
+            throw e;
+        } finally {
+            if (tx.isActive())
+                tx.rollback();
+            tx.begin();
+        }
+        logWritten();
+        Long mark = entityManager.createQuery("SELECT MAX(m.serial) FROM Message AS m", Long.class).getSingleResult();
+        return mark == null ? 0 : mark;
+    }
+    
+    private static void periodicCheckpoint() {
+        try {
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Periodic checkpoint failed", e);
+        }
+    }
+    
+    /**
+     * @param suffix    a suffix
+     * @return a file in the directory of the snapshot file whose name is the snapshot file name with the suffix
+     */
+    private static Path sibling(String suffix) {
+        return snapshotFile.resolveSibling(snapshotFile.getFileName() + suffix);
+    }
+    
+    private static void openLog() throws IOException {
+        log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(sibling(".log")), 1 << 16));
+    }
+    
+    /**
+     * Write the persisted messages that got their serials to the log. Messages whose insert was cancelled are dropped.
+     */
+    private static void logWritten() {
+        if (log == null)
+            return;
+        try {
+            int kept = 0;
+            for (Message m : unlogged) {
+                if (m.getSerial() != 0)
+                    Snapshot.log(m, log);
+                else if (entityManager.contains(m))
+                    unlogged.set(kept++, m);
+            }
+            unlogged.subList(kept, unlogged.size()).clear();
+        } catch (IOException e) {
+            snapshotLost(e);
+        }
+    }
+    
+    private static void logRemoved(Message message) {
+        if (log == null || message.getSerial() == 0)
+            return;
+        if (removedCount == removedSerials.length)
+            removedSerials = Arrays.copyOf(removedSerials, removedCount * 2);
+        removedSerials[removedCount++] = message.getSerial();
+    }
+    
+    /**
+     * Stop writing snapshots after a failure, and delete the snapshot, which can no longer be brought up to date.
+     * @param cause the failure
+     */
+    private static void snapshotLost(Exception cause) {
+        LOGGER.log(Level.WARNING, SNAPSHOT_LOST, cause);
+        closeLog();
+        deleteSnapshotFiles(snapshotFile, sibling(".prev"), sibling(".merge"));
+    }
+    
+    private static void closeLog() {
+        unlogged.clear();
+        removedCount = 0;
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // The log is deleted anyway
+            }
+            log = null;
+            deleteSnapshotFiles(sibling(".log"));
+        }
+    }
+    
+    private static void deleteSnapshotFiles(Path... files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot delete " + file, e);
+            }
+        }
     }
     
     /**
@@ -125,15 +643,53 @@ public class Dispatcher {
      * @return true if and only if all message maps and queues are empty at the time of the calling.
      */
     public static boolean cleanup() {
-        if (entityManager != null) {
-            entityManager.getTransaction().commit();
-            entityManager.close();
+        scheduler.shutdown();
+        boolean interrupted = false;
+        if (checkpointer != null) {
+            // Let a running checkpoint complete. Interrupting it would close its files and lose the snapshot.
+            checkpointer.shutdown();
+            while (true) {
+                try {
+                    if (checkpointer.awaitTermination(1, TimeUnit.MINUTES))
+                        break;
+                    LOGGER.log(Level.WARNING, "Still waiting for a periodic checkpoint to complete");
+                } catch (InterruptedException e) {
+                    // Restored on return, so the final checkpoint is not interrupted either
+                    interrupted = true;
+                }
+            }
+            checkpointer = null;
+        }
+        synchronized (checkpointLock) {
+            boolean logging;
+            synchronized (Dispatcher.class) {
+                logging = log != null;
+            }
+            if (logging) {
+                try {
+                    checkpoint();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Final checkpoint failed", e);
+                }
+            }
+            synchronized (Dispatcher.class) {
+                closeLog();
+                unwrittenSpilled.clear();
+                if (entityManager != null) {
+                    entityManager.getTransaction().commit();
+                    entityManager.close();
+                    entityManager = null;
+                }
+            }
         }
         boolean result =
-            senderMap.values().stream().allMatch(s -> s.cleanup()) &&
-            receiverMap.values().stream().allMatch(s -> s.cleanup());
+            senderMap.allMatch(s -> s.cleanup()) &
+            receiverMap.allMatch(s -> s.cleanup());
         senderMap.clear();
         receiverMap.clear();
+        heapMessages.reset();
+        if (interrupted)
+            Thread.currentThread().interrupt();
         return result;
     }
 }
@@ -0,0 +1,194 @@
+package com.zvil.md;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * A message queue that serves its senders fairly, used by receivers when fair queuing is enabled (see
+ * {@link Dispatcher#setFairQueuing(boolean)}).
+ * <p>
+ * Each sender has its own FIFO sub-queue (a flow). Non-empty flows wait their turn in a queue of active flows, and
+ * {@link #poll()} serves them by deficit round robin: when a flow gets its turn its deficit grows by the sender's weight
+ * (see {@link Dispatcher#setSenderWeight(int, int)}), and it is served one message per unit of deficit before it goes
+ * back to the end of the line. So a sender that floods the receiver only delays the others by its weight in every round.
+ * <p>
+ * A flow is dropped when it runs empty, so senders that stopped sending do not take memory. Messages are added to a flow
+ * inside the flow map's lock on the sender's entry, which the removal takes too, so no message is added to a dropped
+ * flow. Adding a message only contends with other messages of the same sender. Polling is synchronized, as the round
+ * robin state is shared by the consumers. Iteration goes over the flows one after the other, each in FIFO order.
+ * @author Zvi Lifshitz
+ */
+class FairQueue extends AbstractQueue<Message> {
+
+    private static class Flow {
+        final Sender sender;
+        final ConcurrentLinkedQueue<Message> queue;
+        final AtomicBoolean active;     // true while the flow is in the active flow queue or being served
+        int deficit;                    // only accessed by poll()
+
+        Flow(Sender sender) {
+            this.sender = sender;
+            queue = new ConcurrentLinkedQueue<>();
+            active = new AtomicBoolean();
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Flow> flows;
+    private final ConcurrentLinkedQueue<Flow> activeFlows;
+    private Flow current;       // the flow being served, only accessed by poll()
+
+    FairQueue() {
+        flows = new ConcurrentHashMap<>();
+        activeFlows = new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public boolean offer(Message message) {
+        Flow flow = flows.compute(message.getSenderID(), (id, f) -> {
+            if (f == null)
+                f = new Flow(message.getSender());
+            f.queue.add(message);
+            return f;
+        });
+        activate(flow);
+        return true;
+    }
+
+    @Override
+    public Message poll() {
+        return poll(m -> true);
+    }
+
+    /**
+     * Take the next message that satisfies a condition. Messages that do not satisfy it are dropped and do not count
+     * against the deficit of their flow; this lets the receiver skip messages that were already removed.
+     * @param condition the condition. It is tested once on each message taken from the queue.
+     * @return the message or null if the queue is empty.
+     */
+    synchronized Message poll(Predicate<Message> condition) {
+        while (true) {
+            Flow flow = current;
+            if (flow == null) {
+                flow = activeFlows.poll();
+                if (flow == null)
+                    return null;
+                flow.deficit += Math.max(flow.sender.getWeight(), 1);
+                current = flow;
+            }
+            if (flow.deficit > 0) {
+                Message message;
+                while ((message = flow.queue.poll()) != null) {
+                    if (condition.test(message)) {
+                        --flow.deficit;
+                        return message;
+                    }
+                }
+            }
+            current = null;
+            if (flow.queue.isEmpty()) {
+                flow.deficit = 0;
+                flow.active.set(false);
+                Flow idle = flow;      // dropped unless a message was added or it was activated again meanwhile
+                flows.computeIfPresent(flow.sender.getSenderID(),
+                    (id, f) -> f == idle && !f.active.get() && f.queue.isEmpty() ? null : f);
+                if (!flow.queue.isEmpty())
+                    activate(flow);         // a message was added before the flag was cleared
+            } else
+                activeFlows.add(flow);
+        }
+    }
+
+    private void activate(Flow flow) {
+        if (flow.active.compareAndSet(false, true))
+            activeFlows.add(flow);
+    }
+
+    /**
+     * @return the message that {@link #poll()} would return, without removing it.
+     */
+    @Override
+    public synchronized Message peek() {
+        Flow flow = current;
+        if (flow != null && flow.deficit > 0) {
+            Message message = flow.queue.peek();
+            if (message != null)
+                return message;
+        }
+        for (Flow next : activeFlows) {
+            Message message = next.queue.peek();
+            if (message != null)
+                return message;
+        }
+        return flow != null ? flow.queue.peek() : null;
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        List<Iterator<Message>> iterators = new ArrayList<>();
+        flows.values().forEach(flow -> iterators.add(flow.queue.iterator()));
+        return iterators.isEmpty() ? Collections.emptyIterator() : new Iterator<Message>() {
+            private int index = 0;
+            private Iterator<Message> last;     // the iterator that returned the last message
+
+            @Override
+            public boolean hasNext() {
+                while (!iterators.get(index).hasNext()) {
+                    if (index == iterators.size() - 1)
+                        return false;
+                    ++index;
+                }
+                return true;
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                last = iterators.get(index);
+                return last.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                last.remove();
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * Count the queued messages. Like {@link ConcurrentLinkedQueue#size()}, this traverses the queue.
+     * @return the number of messages
+     */
+    @Override
+    public int size() {
+        int[] size = {0};
+        flows.values().forEach(flow -> size[0] += flow.queue.size());
+        return size[0];
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Message> filter) {
+        boolean[] removed = {false};
+        flows.values().forEach(flow -> removed[0] |= flow.queue.removeIf(filter));
+        return removed[0];
+    }
+
+    /**
+     * Remove all messages. Flows remain in the active flow queue until they are found empty by {@link #poll()}.
+     */
+    @Override
+    public void clear() {
+        flows.values().forEach(flow -> flow.queue.clear());
+    }
+}
@@ -0,0 +1,129 @@
+package com.zvil.md;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/**
+ * A concurrent map from primitive int keys to objects, used for the sender and receiver registries.
+ * <p>
+ * The registries are read on every sent message and written only when a new user shows up, so the map is tuned for
+ * that: lookups are lock-free and never box the key or allocate, while insertions are serialized by a lock. Entries are
+ * stored in open-addressed parallel arrays (no node per entry). Individual entries cannot be removed, only the whole map
+ * can be cleared.
+ * @param <V> the value type
+ * @author Zvi Lifshitz
+ */
+class IntObjectMap<V> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * An immutable-size table. A slot is taken when its value is non-null. The key is always written before the value
+     * is published, so a reader that sees a value also sees its key.
+     */
+    private static class Table<V> {
+        final int[] keys;
+        final AtomicReferenceArray<V> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table<V> table = new Table<>(INITIAL_CAPACITY);
+    private int size;
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the value associated with the given key.
+     * @param key   key
+     * @return      the value or null if none exists.
+     */
+    V get(int key) {
+        Table<V> t = table;
+        for (int i = hash(key) & t.mask; ; i = (i + 1) & t.mask) {
+            V value = t.values.get(i);
+            if (value == null || t.keys[i] == key)
+                return value;
+        }
+    }
+
+    /**
+     * Get the value associated with the given key, creating it with the given function if it does not exist.
+     * @param key       key
+     * @param function  creates a value for the key. Called at most once and only if the key is absent.
+     * @return the existing or created value.
+     */
+    V computeIfAbsent(int key, IntFunction<? extends V> function) {
+        V value = get(key);
+        return value != null ? value : insert(key, function);
+    }
+
+    private synchronized V insert(int key, IntFunction<? extends V> function) {
+        V value = get(key);
+        if (value != null)
+            return value;
+        value = function.apply(key);
+        if ((size + 1) * 2 > table.keys.length)
+            table = copy(table, table.keys.length * 2);
+        put(table, key, value);
+        ++size;
+        return value;
+    }
+
+    private static <V> void put(Table<V> t, int key, V value) {
+        int i = hash(key) & t.mask;
+        while (t.values.get(i) != null)
+            i = (i + 1) & t.mask;
+        t.keys[i] = key;
+        t.values.set(i, value);
+    }
+
+    private static <V> Table<V> copy(Table<V> t, int capacity) {
+        Table<V> result = new Table<>(capacity);
+        for (int i = 0; i < t.keys.length; i++) {
+            V value = t.values.get(i);
+            if (value != null)
+                put(result, t.keys[i], value);
+        }
+        return result;
+    }
+
+    /**
+     * Call the given action for every value in the map.
+     * @param action    the action
+     */
+    void forEach(Consumer<? super V> action) {
+        Table<V> t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            V value = t.values.get(i);
+            if (value != null)
+                action.accept(value);
+        }
+    }
+
+    /**
+     * Check a condition on all values in the map. Unlike {@link java.util.stream.Stream#allMatch(Predicate)} this does
+     * not stop on the first mismatch, so it can be used with predicates that have side effects.
+     * @param predicate the condition
+     * @return true if and only if the condition is true for all values.
+     */
+    boolean allMatch(Predicate<? super V> predicate) {
+        boolean[] result = {true};
+        forEach(v -> result[0] &= predicate.test(v));
+        return result[0];
+    }
+
+    synchronized void clear() {
+        table = new Table<>(INITIAL_CAPACITY);
+        size = 0;
+    }
+}
@@ -1,9 +1,17 @@
 package com.zvil.md;
 
 import java.io.Serializable;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import javax.persistence.Access;
+import javax.persistence.AccessType;
 import javax.persistence.CollectionTable;
 import javax.persistence.Column;
 import javax.persistence.ElementCollection;
@@ -11,6 +19,7 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.MapKeyColumn;
 import javax.persistence.Table;
@@ -21,21 +30,29 @@ import javax.persistence.Transient;
  * @author Zvi Lifshitz
  */
 @Entity
+@Access(AccessType.FIELD)
 @Table(name="messages")
 public class Message implements Serializable {
+    // A generator per thread, so threads sending messages do not contend on one generator as UUID.randomUUID() does
+    private static final ThreadLocal<IdGenerator> ID_GENERATOR = ThreadLocal.withInitial(IdGenerator::new);
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "serial", updatable = false, nullable = false)
     private long serial;
     
-    private String messageID;
+    // The message ID is a UUID. It is kept as two longs and only converted to a string when requested.
+    @Transient private long idHigh;
+    @Transient private long idLow;
     private int senderID;
     private int receiverID;
     private boolean needsReceipt;
+    private long deliverAt;
     private String subject;
 
     @ElementCollection
-    @CollectionTable(name = "message_params", joinColumns = {@JoinColumn(name = "msg_serial", referencedColumnName = "serial")})
+    @CollectionTable(name = "message_params", joinColumns = {@JoinColumn(name = "msg_serial", referencedColumnName = "serial")},
+        indexes = {@Index(name = "message_params_key_value", columnList = "param_key, param_value")})
     @MapKeyColumn(name = "param_key")
     @Column(name = "param_value")
     private final Map<String, String> params;
@@ -57,8 +74,26 @@ public class Message implements Serializable {
         this.serial = serial;
     }
 
-    void setMessageID(String messageID) {
-        this.messageID = messageID;
+    /**
+     * Set the message ID. Also used by the persistence provider when a message is restored.
+     * @param messageID a UUID string
+     */
+    protected void setMessageID(String messageID) {
+        idHigh = MessageIdMap.high(messageID);
+        idLow = MessageIdMap.low(messageID);
+    }
+
+    void setMessageID(long idHigh, long idLow) {
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+    }
+
+    long getIdHigh() {
+        return idHigh;
+    }
+
+    long getIdLow() {
+        return idLow;
     }
 
     int getSenderID() {
@@ -102,53 +137,172 @@ public class Message implements Serializable {
     void setNeedsReceipt(boolean needsReceipt) {
         this.needsReceipt = needsReceipt;
     }
+
+    /**
+     * @return the delivery time in milliseconds since the epoch, or 0 for immediate delivery
+     */
+    long getDeliverAt() {
+        return deliverAt;
+    }
+
+    void setDeliverAt(long deliverAt) {
+        this.deliverAt = deliverAt;
+    }
+
+    /**
+     * @return the subject in the form it is stored and persisted, possibly compressed
+     */
+    String getStoredSubject() {
+        return subject;
+    }
+
+    void setStoredSubject(String subject) {
+        this.subject = subject;
+    }
+
+    /**
+     * @return the parameter table with values in the form they are stored and persisted, possibly compressed
+     */
+    Map<String, String> getStoredParams() {
+        return params;
+    }
     
     // Public methods
 
+    @Access(AccessType.PROPERTY)
     public String getMessageID() {
-        return messageID;
+        return new UUID(idHigh, idLow).toString();
     }
 
+    /**
+     * Get the subject. If the subject was compressed it is decompressed on every call.
+     * @return the subject
+     */
     public String getSubject() {
-        return subject;
+        return Compression.decode(subject);
     }
 
+    /**
+     * Set the subject. The subject is compressed if compression is enabled and it is long enough (see
+     * {@link Dispatcher#setCompression(int, com.zvil.md.CompressionCodec) Dispatcher.setCompression()}).
+     * @param subject   the subject
+     */
     public void setSubject(String subject) {
-        this.subject = subject;
+        this.subject = Compression.encode(subject);
     }
     
     /**
-     * Add a parameter to the parameter table
+     * Add a parameter to the parameter table. The value is compressed under the same conditions as the subject.
      * @param key   key
      * @param value value
      */
     public void putParam(String key, String value) {
-        params.put(key, value);
+        params.put(key, Compression.encode(value));
     }
     
     /**
-     * Get the value of the parameter with the given key.
+     * Get the value of the parameter with the given key. If the value was compressed it is decompressed on every call.
      * @param key   key
      * @return      the value associated with the key or null if none exists.
      */
     public String getParam(String key) {
-        return params.get(key);
+        return Compression.decode(params.get(key));
     }
 
     /**
-     * Get the parameter table
+     * Get an unmodifiable view of the parameter table. Values are decompressed when they are read from the view.
      * @return the parameter table
      */
     public Map<String, String> getParams() {
-        return params;
+        return new ParamsView();
+    }
+
+    /**
+     * Read-only view of the parameter table that decompresses values on access
+     */
+    private class ParamsView extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            return Compression.decode(params.get(key));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return params.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return params.size();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    Iterator<Entry<String, String>> entries = params.entrySet().iterator();
+                    return new Iterator<Entry<String, String>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            Entry<String, String> entry = entries.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(), Compression.decode(entry.getValue()));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return params.size();
+                }
+            };
+        }
     }
     
     /**
-     * A static method that generates a unique message ID. In this implementation we use a random UUID. To guarantee 100%
-     * uniqueness other methods may be preferable, such as concatenating current timestamp with a rotating integer value.
-     * @return the generated message ID.
+     * Generate a unique ID for this message. In this implementation we use a random (version 4) UUID, drawn from a
+     * cryptographically strong generator as {@link UUID#randomUUID()} does, but without creating a UUID object. To
+     * guarantee 100% uniqueness other methods may be preferable, such as concatenating current timestamp with a rotating
+     * integer value.
      */
-    static String generateMessageID() {
-        return UUID.randomUUID().toString();
+    void generateMessageID() {
+        byte[] bytes = ID_GENERATOR.get().next();
+        idHigh = (toLong(bytes, 0) & ~0xF000L) | 0x4000L;
+        idLow = (toLong(bytes, 8) & ~(3L << 62)) | (2L << 62);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++)
+            value = (value << 8) | (bytes[i] & 0xFF);
+        return value;
+    }
+
+    /**
+     * A strong random generator and a buffer for the 16 random bytes of a message ID, drawn in one call
+     */
+    private static class IdGenerator {
+        private final SecureRandom random;
+        private final byte[] bytes = new byte[16];
+
+        IdGenerator() {
+            SecureRandom drbg;
+            try {
+                drbg = SecureRandom.getInstance("DRBG");
+            } catch (NoSuchAlgorithmException e) {
+                drbg = new SecureRandom();
+            }
+            random = drbg;
+        }
+
+        byte[] next() {
+            random.nextBytes(bytes);
+            return bytes;
+        }
     }
 }
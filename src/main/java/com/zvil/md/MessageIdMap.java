@@ -0,0 +1,355 @@
+package com.zvil.md;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A concurrent map from message IDs to objects, used to index in-flight messages.
+ * <p>
+ * Message IDs are UUID strings (see {@link Message#generateMessageID()}). Instead of keeping the 36-character string as
+ * a key, the map parses it into its two 64-bit halves and stores them in a primitive array, with the values in a
+ * parallel array, so an entry costs 16 bytes of key and one reference instead of a hash node and a string. The map is
+ * split into stripes, each an open-addressed table guarded by its own lock.
+ * <p>
+ * Reads do not lock. Each stripe has a version number that writers make odd while they modify the table, so a reader
+ * that saw the same even version before and after its lookup knows it did not overlap a write. Otherwise it retries
+ * under the lock. A stripe's table is allocated on the first put and then only shrinks, by half, when it is less than
+ * an eighth full, so a map that keeps filling up and emptying does not allocate.
+ * <p>
+ * A string that is not a well formed UUID is never found in the map, and cannot be put in it.
+ * @param <V> the value type
+ * @author Zvi Lifshitz
+ */
+class MessageIdMap<V> {
+    private static final int STRIPES = 8;           // must be a power of 2
+    private static final int INITIAL_CAPACITY = 8;  // per stripe, must be a power of 2
+    private static final int OPTIMISTIC_READS = 2;  // lookups attempted without the lock before taking it
+
+    private static class Stripe {
+        long[] keys;        // two longs per slot: high and low half of the ID
+        Object[] values;    // a slot is taken when its value is non-null
+        int size;
+        volatile int version;   // odd while the table is being modified
+
+        Stripe() {
+            keys = new long[0];
+            values = new Object[0];
+        }
+
+        /**
+         * Called by writers, holding the lock, before modifying the table.
+         */
+        void beginWrite() {
+            version = version + 1;
+            VarHandle.releaseFence();   // the modifications must not become visible before the odd version
+        }
+
+        /**
+         * Called by writers, holding the lock, after modifying the table.
+         */
+        void endWrite() {
+            version = version + 1;
+        }
+
+        /**
+         * Look up a key without the lock.
+         * @return the value, null if the key is not in the table, or the stripe itself if the lookup overlapped a write.
+         */
+        Object getOptimistic(long high, long low, int hash) {
+            int before = version;
+            if ((before & 1) != 0)
+                return this;
+            long[] k = keys;
+            Object[] v = values;
+            Object result = null;
+            if (k.length == 2 * v.length) {     // both arrays are read from the same table, unless it was resized
+                int mask = v.length - 1;
+                int i = hash & mask;
+                for (int n = 0; n < v.length; n++, i = (i + 1) & mask) {
+                    Object value = v[i];
+                    if (value == null)
+                        break;
+                    if (k[2 * i] == high && k[2 * i + 1] == low) {
+                        result = value;
+                        break;
+                    }
+                }
+            }
+            VarHandle.acquireFence();           // the reads above must complete before the version is checked again
+            return version == before ? result : this;
+        }
+
+        void clear() {
+            if (values.length > INITIAL_CAPACITY) {
+                keys = new long[2 * INITIAL_CAPACITY];
+                values = new Object[INITIAL_CAPACITY];
+            } else
+                Arrays.fill(values, null);
+            size = 0;
+        }
+
+        int find(long high, long low, int hash) {
+            int mask = values.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                if (values[i] == null || (keys[2 * i] == high && keys[2 * i + 1] == low))
+                    return i;
+            }
+        }
+
+        Object get(long high, long low, int hash) {
+            return size == 0 ? null : values[find(high, low, hash)];
+        }
+
+        Object put(long high, long low, int hash, Object value) {
+            if ((size + 1) * 4 > values.length * 3)
+                resize(Math.max(INITIAL_CAPACITY, values.length * 2));
+            int i = find(high, low, hash);
+            Object previous = values[i];
+            if (previous == null) {
+                keys[2 * i] = high;
+                keys[2 * i + 1] = low;
+                ++size;
+            }
+            values[i] = value;
+            return previous;
+        }
+
+        Object remove(long high, long low, int hash, Object expected) {
+            if (size == 0)
+                return null;
+            int i = find(high, low, hash);
+            Object previous = values[i];
+            if (previous == null || (expected != null && previous != expected))
+                return null;
+            // Shift back the entries that follow in the same probe sequence, so no tombstones are needed
+            int mask = values.length - 1;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[2 * j], keys[2 * j + 1]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[2 * i] = keys[2 * j];
+                    keys[2 * i + 1] = keys[2 * j + 1];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            values[i] = null;
+            --size;
+            if (values.length > INITIAL_CAPACITY && size * 8 < values.length)
+                resize(values.length / 2);
+            return previous;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[2 * capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = hash(oldKeys[2 * j], oldKeys[2 * j + 1]) & mask;
+                    while (values[i] != null)
+                        i = (i + 1) & mask;
+                    keys[2 * i] = oldKeys[2 * j];
+                    keys[2 * i + 1] = oldKeys[2 * j + 1];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    MessageIdMap() {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private static int hash(long high, long low) {
+        long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash >>> 28) & (STRIPES - 1)];
+    }
+
+    /**
+     * Get the value associated with a message ID.
+     * @param messageID message ID
+     * @return the value or null if none exists.
+     */
+    V get(String messageID) {
+        return isValid(messageID) ? get(high(messageID), low(messageID)) : null;
+    }
+
+    /**
+     * Get the value associated with a message ID given as its two halves.
+     * @param high  high half of the ID
+     * @param low   low half of the ID
+     * @return the value or null if none exists.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long high, long low) {
+        int hash = hash(high, low);
+        Stripe stripe = stripe(hash);
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            Object value = stripe.getOptimistic(high, low, hash);
+            if (value != stripe)
+                return (V) value;
+        }
+        synchronized (stripe) {
+            return (V) stripe.get(high, low, hash);
+        }
+    }
+
+    /**
+     * Associate a value with a message ID.
+     * @param messageID message ID
+     * @param value     value (not null)
+     * @return the previous value or null if none existed.
+     * @throws IllegalArgumentException if the message ID is not a well formed UUID.
+     */
+    V put(String messageID, V value) {
+        if (!isValid(messageID))
+            throw new IllegalArgumentException("Malformed message ID: " + messageID);
+        return put(high(messageID), low(messageID), value);
+    }
+
+    /**
+     * Associate a value with a message ID given as its two halves.
+     * @param high  high half of the ID
+     * @param low   low half of the ID
+     * @param value value (not null)
+     * @return the previous value or null if none existed.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long high, long low, V value) {
+        int hash = hash(high, low);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            stripe.beginWrite();
+            try {
+                return (V) stripe.put(high, low, hash, value);
+            } finally {
+                stripe.endWrite();
+            }
+        }
+    }
+
+    /**
+     * Remove a message ID from the map.
+     * @param messageID message ID
+     * @return the removed value or null if none existed.
+     */
+    V remove(String messageID) {
+        return remove(messageID, null);
+    }
+
+    /**
+     * Remove a message ID from the map only if it is currently associated with the given value.
+     * @param messageID message ID
+     * @param expected  the expected value (compared by identity) or null to remove whatever value exists.
+     * @return the removed value or null if nothing was removed.
+     */
+    V remove(String messageID, V expected) {
+        return isValid(messageID) ? remove(high(messageID), low(messageID), expected) : null;
+    }
+
+    /**
+     * Remove a message ID given as its two halves, only if it is currently associated with the given value.
+     * @param high      high half of the ID
+     * @param low       low half of the ID
+     * @param expected  the expected value (compared by identity) or null to remove whatever value exists.
+     * @return the removed value or null if nothing was removed.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long high, long low, V expected) {
+        int hash = hash(high, low);
+        Stripe stripe = stripe(hash);
+        synchronized (stripe) {
+            stripe.beginWrite();
+            try {
+                return (V) stripe.remove(high, low, hash, expected);
+            } finally {
+                stripe.endWrite();
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Call the given action for every value in the map. Each stripe is copied under its lock and the action is called
+     * outside of it, so the action may modify the map.
+     * @param action    the action
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super V> action) {
+        for (Stripe stripe : stripes) {
+            Object[] values;
+            synchronized (stripe) {
+                values = stripe.values.clone();
+            }
+            for (Object value : values) {
+                if (value != null)
+                    action.accept((V) value);
+            }
+        }
+    }
+
+    void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.beginWrite();
+                stripe.clear();
+                stripe.endWrite();
+            }
+        }
+    }
+
+    // UUID parsing. The canonical form is 8-4-4-4-12 hex digits; the first 16 digits form the high half.
+
+    static boolean isValid(String id) {
+        if (id == null || id.length() != 36)
+            return false;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-')
+                    return false;
+            } else if (Character.digit(c, 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    static long high(String id) {
+        return (hex(id, 0, 8) << 32) | (hex(id, 9, 13) << 16) | hex(id, 14, 18);
+    }
+
+    static long low(String id) {
+        return (hex(id, 19, 23) << 48) | hex(id, 24, 36);
+    }
+
+    private static long hex(String id, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++)
+            result = (result << 4) | Character.digit(id.charAt(i), 16);
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+package com.zvil.md;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Compact binary form of a message, used for snapshots and for spilling inbox tails off-heap.
+ * <p>
+ * A record holds the serial, the two halves of the message ID, the sender and receiver IDs, the receipt flag, the
+ * delivery time, the subject and the parameters. The subject and parameter values are written in their stored, possibly compressed, form
+ * (see {@link Compression}). Strings are written as an int length (-1 for null) followed by their UTF-8 bytes. All
+ * numbers are big endian, so records written with {@link DataOutput} can be read with a default {@link ByteBuffer}.
+ * @author Zvi Lifshitz
+ */
+final class MessageRecord {
+
+    private MessageRecord() {
+    }
+
+    /**
+     * Write a message record
+     * @param message   the message
+     * @param out       the output
+     * @throws IOException if the output fails
+     */
+    static void write(Message message, DataOutput out) throws IOException {
+        out.writeLong(message.getSerial());
+        out.writeLong(message.getIdHigh());
+        out.writeLong(message.getIdLow());
+        out.writeInt(message.getSenderID());
+        out.writeInt(message.getReceiverID());
+        out.writeBoolean(message.isNeedsReceipt());
+        out.writeLong(message.getDeliverAt());
+        writeString(message.getStoredSubject(), out);
+        Map<String, String> params = message.getStoredParams();
+        out.writeInt(params.size());
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            writeString(param.getKey(), out);
+            writeString(param.getValue(), out);
+        }
+    }
+
+    /**
+     * Read a message record. The sender and receiver objects are not set in the returned message.
+     * @param in    a buffer positioned at the start of a record. On return it is positioned after the record.
+     * @return the message
+     * @throws java.nio.BufferUnderflowException if the buffer ends before the record does.
+     */
+    static Message read(ByteBuffer in) {
+        Message message = new Message();
+        message.setSerial(in.getLong());
+        long idHigh = in.getLong();
+        message.setMessageID(idHigh, in.getLong());
+        message.setSenderID(in.getInt());
+        message.setReceiverID(in.getInt());
+        message.setNeedsReceipt(in.get() != 0);
+        message.setDeliverAt(in.getLong());
+        message.setStoredSubject(readString(in));
+        for (int n = in.getInt(); n > 0; n--) {
+            String key = readString(in);
+            message.getStoredParams().put(key, readString(in));
+        }
+        return message;
+    }
+
+    /**
+     * Skip a message record without decoding it.
+     * @param in    a buffer positioned at the start of a record. On return it is positioned after the record.
+     * @throws java.nio.BufferUnderflowException if the buffer ends before the record does.
+     */
+    static void skip(ByteBuffer in) {
+        skip(in, 41);       // serial, ID, sender, receiver, receipt flag and delivery time
+        skipString(in);
+        for (int n = in.getInt(); n > 0; n--) {
+            skipString(in);
+            skipString(in);
+        }
+    }
+
+    /**
+     * Get the serial of a record without reading the whole record.
+     * @param buffer    a buffer holding the record
+     * @param offset    offset of the record in the buffer
+     * @return the serial
+     */
+    static long readSerial(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset);
+    }
+
+    /**
+     * Get the high half of the message ID of a record without reading the whole record.
+     * @param buffer    a buffer holding the record
+     * @param offset    offset of the record in the buffer
+     * @return the high half of the message ID
+     */
+    static long readIdHigh(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + 8);
+    }
+
+    /**
+     * Get the low half of the message ID of a record without reading the whole record.
+     * @param buffer    a buffer holding the record
+     * @param offset    offset of the record in the buffer
+     * @return the low half of the message ID
+     */
+    static long readIdLow(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + 16);
+    }
+
+    private static void writeString(String s, DataOutput out) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length > 0)
+            skip(in, length);
+    }
+
+    private static void skip(ByteBuffer in, int length) {
+        if (in.remaining() < length)
+            throw new BufferUnderflowException();
+        in.position(in.position() + length);
+    }
+}
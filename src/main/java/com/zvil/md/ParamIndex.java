@@ -0,0 +1,83 @@
+package com.zvil.md;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A secondary index of the messages in a receiver queue by the value of one parameter.
+ * <p>
+ * The index maps each parameter value to the IDs of the queued messages having it, in the order they were added, so
+ * the messages can be retrieved in queue order without scanning the queue. IDs are kept in their binary form, as a
+ * {@link UUID} holds the same two halves as the message. Each set of IDs is only accessed inside the map's compute
+ * methods, which lock the entry.
+ * <p>
+ * A message is indexed before it is queued and removed from the index after it is taken from the queue, so the index
+ * may briefly hold IDs of messages that are not queued, but never misses a queued one.
+ * @author Zvi Lifshitz
+ */
+class ParamIndex {
+    private final String key;
+    private final ConcurrentHashMap<String, Set<UUID>> entries;
+
+    /**
+     * @param key   the indexed parameter key
+     */
+    ParamIndex(String key) {
+        this.key = key;
+        entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Index a message. Does nothing if the message does not have the indexed parameter.
+     * @param message
+     */
+    void add(Message message) {
+        String value = message.getParam(key);
+        if (value == null)
+            return;
+        UUID messageID = new UUID(message.getIdHigh(), message.getIdLow());
+        entries.compute(value, (v, ids) -> {
+            if (ids == null)
+                ids = new LinkedHashSet<>();
+            ids.add(messageID);
+            return ids;
+        });
+    }
+
+    /**
+     * Remove a message from the index.
+     * @param message
+     */
+    void remove(Message message) {
+        String value = message.getParam(key);
+        if (value == null)
+            return;
+        UUID messageID = new UUID(message.getIdHigh(), message.getIdLow());
+        entries.computeIfPresent(value, (v, ids) -> {
+            ids.remove(messageID);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * Get the IDs of the messages with the given parameter value.
+     * @param value parameter value
+     * @return the message IDs in the order the messages were added
+     */
+    List<UUID> get(String value) {
+        List<UUID> result = new ArrayList<>();
+        entries.computeIfPresent(value, (v, ids) -> {
+            result.addAll(ids);
+            return ids;
+        });
+        return result;
+    }
+
+    void clear() {
+        entries.clear();
+    }
+}
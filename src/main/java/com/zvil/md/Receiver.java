@@ -1,21 +1,100 @@
 package com.zvil.md;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 /**
  * Receivers use this class to receive messages and other receiver operations.
+ * <p>
+ * A message is queued if and only if it is in the message map. Messages removed out of order (by ID, by parameter or by
+ * the sender) are only removed from the map and are skipped when they reach the head of the queue, so the removal does
+ * not scan the queue. When such removed messages pile up, they are purged from the queue in one pass.
+ * <p>
+ * When heap budgets are set (see {@link Dispatcher#setInboxBudget(int, long)}), the queue is tiered: the head of the
+ * queue is kept on the heap and, once the budget is exhausted, newly queued messages are spilled to a {@link SpillStore}
+ * that holds the tail. As long as the tail is not empty all new messages go to it, so the queue order is kept. When the
+ * head runs low, messages are paged back in from the tail. Spilled messages are still indexed and can be found by ID.
+ * <p>
+ * With fair queuing (see {@link Dispatcher#setFairQueuing(boolean)}) the queue is a {@link FairQueue}, which keeps the
+ * order of each sender's messages but interleaves the senders. Scanning operations then go over the queue sender by
+ * sender. When the queue is also tiered, only the head tier is served fairly.
  * @author Zvi Lifshitz
  */
 public class Receiver {
+    private static final int PURGE_THRESHOLD = 1024;
+    private static final int DEFAULT_WINDOW = 256;     // messages paged in at a time when only a global budget is set
+    private static final long MAX_LEASE_NANOS = Long.MAX_VALUE >> 2;   // about 73 years, so deadlines do not overflow
     private final int ReceiverID;
-    private final ConcurrentHashMap<String, Message> messageMap;
-    private final ConcurrentLinkedQueue<Message> messageQueue;
+    private final MessageIdMap<Message> messageMap;
+    private final Queue<Message> messageQueue;
+    private final AtomicInteger removedInQueue;
+    private final AtomicInteger queued;             // number of messages in the message map
+    private final SpillStore tail;
+    private final MessageIdMap<Lease> leases;
+    private final DelayQueue<Expiry> leaseExpiry;
+    private final MessageIdMap<Message> scheduled;
+    private final ConcurrentHashMap<String, ParamIndex> indexes;
+
+    /**
+     * A message handed out by {@link #receive(long) receive()} and not acknowledged yet.
+     */
+    private static class Lease {
+        final Message message;
+        final long deadline;    // in System.nanoTime() units
+
+        Lease(Message message, long visibilityTimeout) {
+            this.message = message;
+            deadline = System.nanoTime() + Math.min(TimeUnit.MILLISECONDS.toNanos(Math.max(visibilityTimeout, 0)),
+                MAX_LEASE_NANOS);
+        }
+    }
+
+    /**
+     * The expiry of a lease. Only the message ID is kept, so an acknowledged or removed message is not held on the heap
+     * until its lease would have expired.
+     */
+    private static class Expiry implements Delayed {
+        final long idHigh;
+        final long idLow;
+        final long deadline;
+
+        Expiry(Message message, Lease lease) {
+            idHigh = message.getIdHigh();
+            idLow = message.getIdLow();
+            deadline = lease.deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.signum(deadline - ((Expiry) other).deadline);  // nanoTime() values are compared by difference
+        }
+    }
 
     Receiver(int ReceiverID) {
         this.ReceiverID = ReceiverID;
-        messageMap = new ConcurrentHashMap<>();
-        messageQueue = new ConcurrentLinkedQueue<>();
+        messageMap = new MessageIdMap<>();
+        messageQueue = Dispatcher.isFairQueuing() ? new FairQueue() : new ConcurrentLinkedQueue<>();
+        removedInQueue = new AtomicInteger();
+        queued = new AtomicInteger();
+        tail = new SpillStore();
+        leases = new MessageIdMap<>();
+        leaseExpiry = new DelayQueue<>();
+        scheduled = new MessageIdMap<>();
+        indexes = new ConcurrentHashMap<>();
     }
 
     int getReceiverID() {
@@ -27,66 +106,430 @@ public class Receiver {
      * @return the head message or null if the message queue is empty.
      */
     public Message getNextMessage() {
-        Message message = messageQueue.poll();
+        expireLeases();
+        Message message = poll();
         if (message != null) {
-            messageMap.remove(message.getMessageID());
             message.getSender().retreivedMessage(message);
             Dispatcher.remove(message);
         }
         return message;
     }
     
+    /**
+     * Get the first message in the message queue that satisfies the given condition and remove it from the queue.
+     * This scans the queue; to select messages by a parameter value prefer
+     * {@link #getMessages(java.lang.String, java.lang.String) getMessages()} with an index.
+     * @param condition the condition
+     * @return the first matching message or null if no queued message matches.
+     */
+    public Message getNextMessage(Predicate<Message> condition) {
+        expireLeases();
+        for (Message message : messageQueue) {
+            if (isQueued(message) && condition.test(message) && remove(message)) {
+                message.getSender().retreivedMessage(message);
+                Dispatcher.remove(message);
+                return message;
+            }
+        }
+        List<Message> spilled = tail.size() > 0 ? tail.removeIf(m -> condition.test(relink(m)), 1) : List.of();
+        if (spilled.isEmpty())
+            return null;
+        Message message = spilled.get(0);
+        unindex(message);
+        message.getSender().retreivedMessage(message);
+        Dispatcher.remove(message);
+        return message;
+    }
+    
     /**
      * Get a specific message and remove it from the message map and message queue
      * @param messageID the message ID
      * @return the retrieved message or null if the message does not exist.
      */
     public Message getMessage(String messageID) {
-        Message message = messageMap.remove(messageID);
-        if (message != null) {
-            messageQueue.remove(message);
-            message.getSender().retreivedMessage(message);
-            Dispatcher.remove(message);
-        }
+        if (!MessageIdMap.isValid(messageID))
+            return null;
+        expireLeases();
+        long idHigh = MessageIdMap.high(messageID);
+        long idLow = MessageIdMap.low(messageID);
+        Message message = messageMap.get(idHigh, idLow);
+        if (message == null || !remove(message))
+            message = takeSpilled(idHigh, idLow);
+        if (message == null)
+            return null;
+        message.getSender().retreivedMessage(message);
+        Dispatcher.remove(message);
         return message;
     }
     
+    /**
+     * Get all queued messages whose parameter with the given key has the given value, and remove them from the queue.
+     * If an index was declared for the key (see {@link #addIndex(java.lang.String) addIndex()}) the messages are found
+     * through the index, otherwise the queue is scanned.
+     * @param key   parameter key
+     * @param value parameter value
+     * @return the retrieved messages in queue order. The list is empty if no message matches.
+     */
+    public List<Message> getMessages(String key, String value) {
+        expireLeases();
+        List<Message> result = new ArrayList<>();
+        ParamIndex index = indexes.get(key);
+        if (index != null) {
+            // IDs of messages that are not queued (yet or any more) are skipped
+            for (UUID messageID : index.get(value)) {
+                long idHigh = messageID.getMostSignificantBits();
+                long idLow = messageID.getLeastSignificantBits();
+                Message message = messageMap.get(idHigh, idLow);
+                if (message == null || !remove(message))
+                    message = takeSpilled(idHigh, idLow);
+                if (message != null)
+                    result.add(message);
+            }
+        } else {
+            for (Message message : messageQueue) {
+                if (isQueued(message) && value.equals(message.getParam(key)) && remove(message))
+                    result.add(message);
+            }
+            if (tail.size() > 0) {
+                List<Message> spilled = tail.removeIf(m -> value.equals(m.getParam(key)), Integer.MAX_VALUE);
+                spilled.forEach(m -> unindex(relink(m)));
+                result.addAll(spilled);
+            }
+        }
+        result.forEach(m -> m.getSender().retreivedMessage(m));
+        Dispatcher.remove(result);
+        return result;
+    }
+    
+    /**
+     * Declare a secondary index on a parameter key, so that {@link #getMessages(java.lang.String, java.lang.String)
+     * getMessages()} with this key does not scan the queue. The index is built from the messages already queued and
+     * then maintained as messages are added and removed.
+     * @param key   parameter key
+     */
+    public void addIndex(String key) {
+        ParamIndex index = new ParamIndex(key);
+        if (indexes.putIfAbsent(key, index) == null) {
+            for (Message message : messageQueue) {
+                if (isQueued(message))
+                    index.add(message);
+            }
+            tail.forEach(index::add);
+        }
+    }
+    
+    /**
+     * Get the message at the head of the message queue and lease it for the given time. The message is removed from the
+     * queue but is not considered retrieved until it is acknowledged by {@link #ack(java.lang.String...) ack()}. If it
+     * is not acknowledged before the lease expires it returns to the tail of the queue and will be handed out again.
+     * @param visibilityTimeout lease time in milliseconds. Longer times than about 73 years are cut to that.
+     * @return the head message or null if the message queue is empty.
+     */
+    public Message receive(long visibilityTimeout) {
+        expireLeases();
+        Message message = poll();
+        if (message == null)
+            return null;
+        Lease lease = new Lease(message, visibilityTimeout);
+        leases.put(message.getIdHigh(), message.getIdLow(), lease);
+        leaseExpiry.add(new Expiry(message, lease));
+        return message;
+    }
+
+    /**
+     * Acknowledge leased messages. Acknowledged messages are removed from the persistence medium in one batch and their
+     * senders are notified as if the messages were retrieved by {@link #getNextMessage()}.
+     * @param messageIDs    the IDs of messages returned by {@link #receive(long) receive()}
+     * @return the number of messages acknowledged. Messages whose lease has already expired are not acknowledged.
+     */
+    public int ack(String... messageIDs) {
+        expireLeases();
+        List<Message> acked = new ArrayList<>(messageIDs.length);
+        for (String messageID : messageIDs) {
+            Lease lease = leases.remove(messageID);
+            if (lease != null) {
+                lease.message.getSender().retreivedMessage(lease.message);
+                acked.add(lease.message);
+            }
+        }
+        Dispatcher.remove(acked);
+        return acked.size();
+    }
+
+    /**
+     * Return messages whose lease has expired to the message queue.
+     */
+    private void expireLeases() {
+        Expiry expiry;
+        while ((expiry = leaseExpiry.poll()) != null) {
+            // The message may have been acknowledged, removed, or leased again since
+            Lease lease = leases.get(expiry.idHigh, expiry.idLow);
+            if (lease != null && lease.deadline == expiry.deadline
+                    && leases.remove(expiry.idHigh, expiry.idLow, lease) != null)
+                addMessage(lease.message);
+        }
+    }
+
     /**
      * Add a newly sent message
      * @param message 
      */
     void sendMessage(Message message) {
+        Dispatcher.persist(message);        // first, so the message is managed if it is spilled
         addMessage(message);
-        Dispatcher.persist(message);
     }
     
     /**
-     * Add a message to the message map and message queue.
+     * Add a message to the message map and message queue, or schedule it if its delivery time has not come yet.
      * @param message 
      */
     void addMessage(Message message) {
-        messageMap.put(message.getMessageID(), message);
+        if (message.getDeliverAt() > System.currentTimeMillis()) {
+            scheduled.put(message.getIdHigh(), message.getIdLow(), message);
+            Dispatcher.schedule(message);
+        } else
+            enqueue(message);
+    }
+    
+    /**
+     * Called when the delivery time of a scheduled message has come. Move it to the message queue unless it was removed
+     * in the meantime.
+     * @param idHigh    high half of the message ID
+     * @param idLow     low half of the message ID
+     */
+    void promote(long idHigh, long idLow) {
+        Message message = scheduled.remove(idHigh, idLow, null);
+        if (message != null)
+            enqueue(message);
+    }
+    
+    /**
+     * Add a message to the tail of the queue: to the head tier if the queue is not tiered or the heap budget allows it,
+     * otherwise to the spilled tier.
+     * @param message 
+     */
+    private void enqueue(Message message) {
+        // Index first, so a consumer that takes the message right after it is queued also removes it from the indexes
+        int indexed = indexes.size();
+        if (indexed > 0)
+            indexes.values().forEach(index -> index.add(message));
+        if (tail.size() > 0 || Dispatcher.isTiered()) {
+            boolean spilled;
+            synchronized (tail) {
+                spilled = tail.size() > 0 || isOverBudget();
+                if (spilled) {
+                    Dispatcher.detach(message);
+                    tail.append(message);
+                    // An index added meanwhile may have scanned the spilled tier before the message was appended. Spilled
+                    // messages are taken under the lock of the tier, so the message is still queued here.
+                    if (indexes.size() != indexed)
+                        indexes.values().forEach(index -> index.add(message));
+                } else
+                    putHead(message);
+            }
+            if (spilled) {
+                Dispatcher.flushSpilled(false);
+                return;
+            }
+        } else
+            putHead(message);
+        if (indexes.size() != indexed)
+            reindex(message);
+    }
+
+    /**
+     * Index a message put in the head tier while an index was added, since the index may have scanned the queue before
+     * the message was put there.
+     * @param message
+     */
+    private void reindex(Message message) {
+        indexes.values().forEach(index -> index.add(message));
+        // A consumer that took the message before it was indexed did not remove it from the index
+        if (!isQueued(message))
+            unindex(message);
+    }
+    
+    private boolean isOverBudget() {
+        int budget = Dispatcher.getReceiverHeapBudget();
+        return (budget > 0 && queued.get() >= budget) || Dispatcher.isGlobalBudgetExhausted();
+    }
+    
+    private void putHead(Message message) {
+        messageMap.put(message.getIdHigh(), message.getIdLow(), message);
+        queued.incrementAndGet();
+        Dispatcher.addHeapMessages(1);
         messageQueue.add(message);
     }
     
     /**
-     * Remove a message, if exists, from the message map and message queue.
+     * Move messages from the spilled tier to the head tier until the head holds a full window, or the global heap budget
+     * is exhausted. An empty head still gets one message, so the receiver can make progress.
+     */
+    private void pageIn() {
+        int budget = Dispatcher.getReceiverHeapBudget();
+        int window = budget > 0 ? budget : DEFAULT_WINDOW;
+        synchronized (tail) {
+            Message message;
+            while (queued.get() < window && (queued.get() == 0 || !Dispatcher.isGlobalBudgetExhausted())
+                    && (message = tail.poll()) != null)
+                putHead(relink(message));
+        }
+    }
+    
+    /**
+     * Take a message from the spilled tier.
+     * @param idHigh    high half of the message ID
+     * @param idLow     low half of the message ID
+     * @return the message or null if it is not spilled
+     */
+    private Message takeSpilled(long idHigh, long idLow) {
+        if (tail.size() == 0)
+            return null;
+        Message message = tail.remove(idHigh, idLow);
+        if (message != null)
+            unindex(relink(message));
+        return message;
+    }
+    
+    /**
+     * Called when a message that was spilled before it was written to the persistence medium has been written. Set its
+     * serial in its record, if it is still spilled, and stop tracking its managed instance.
+     * @param message   the managed instance of the message
+     */
+    void setSpilledSerial(Message message) {
+        synchronized (tail) {
+            tail.setSerial(message.getIdHigh(), message.getIdLow(), message.getSerial());
+            Dispatcher.unspill(message);
+        }
+    }
+    
+    /**
+     * Set the sender and receiver objects in a message read from the spilled tier.
      * @param message
+     * @return the message
      */
-    void deleteMessage(Message message) {
-        messageMap.remove(message.getMessageID());
-        messageQueue.remove(message);
-        Dispatcher.remove(message);
+    private Message relink(Message message) {
+        message.setSender(Dispatcher.createSender(message.getSenderID()));
+        message.setReceiver(this);
+        return message;
+    }
+    
+    /**
+     * Remove a message, if exists, from the message queue (either tier), or from the leased or scheduled messages.
+     * @param idHigh    high half of the message ID
+     * @param idLow     low half of the message ID
+     */
+    void deleteMessage(long idHigh, long idLow) {
+        Message message = messageMap.get(idHigh, idLow);
+        if (message == null || !remove(message))
+            message = takeSpilled(idHigh, idLow);
+        if (message == null) {
+            Lease lease = leases.remove(idHigh, idLow, null);
+            message = lease != null ? lease.message : scheduled.remove(idHigh, idLow, null);
+        }
+        if (message != null)
+            Dispatcher.remove(message);
+    }
+    
+    /**
+     * Take the message at the head of the queue, skipping messages that were already removed. If the head tier runs low,
+     * page in messages from the spilled tier first.
+     * @return the head message or null if the message queue is empty.
+     */
+    private Message poll() {
+        if (tail.size() > 0) {
+            int budget = Dispatcher.getReceiverHeapBudget();
+            if (queued.get() <= (budget > 0 ? budget : DEFAULT_WINDOW) / 2)
+                pageIn();
+        }
+        if (messageQueue instanceof FairQueue)
+            return ((FairQueue) messageQueue).poll(this::claim);
+        Message message;
+        while ((message = messageQueue.poll()) != null) {
+            if (claim(message))
+                return message;
+        }
+        return null;
+    }
+    
+    /**
+     * Claim a message taken from the head of the queue.
+     * @param message
+     * @return true if the message was still queued, false if it was already removed and is just skipped.
+     */
+    private boolean claim(Message message) {
+        if (unmap(message))
+            return true;
+        removedInQueue.decrementAndGet();
+        return false;
+    }
+    
+    /**
+     * Remove a message out of order. The message stays in the queue until it is skipped by {@link #poll()} or purged.
+     * @param message
+     * @return true if the message was queued and this call removed it.
+     */
+    private boolean remove(Message message) {
+        if (!unmap(message))
+            return false;
+        int removed = removedInQueue.incrementAndGet();
+        if (removed > PURGE_THRESHOLD && removed > queued.get())
+            purge();
+        return true;
+    }
+    
+    /**
+     * Remove a message from the message map and the indexes.
+     * @param message
+     * @return true if the message was in the map and this call removed it.
+     */
+    private boolean unmap(Message message) {
+        if (messageMap.remove(message.getIdHigh(), message.getIdLow(), message) == null)
+            return false;
+        queued.decrementAndGet();
+        Dispatcher.addHeapMessages(-1);
+        unindex(message);
+        return true;
+    }
+    
+    private void unindex(Message message) {
+        if (!indexes.isEmpty())
+            indexes.values().forEach(index -> index.remove(message));
+    }
+    
+    private boolean isQueued(Message message) {
+        return messageMap.get(message.getIdHigh(), message.getIdLow()) == message;
+    }
+    
+    /**
+     * Remove from the queue the messages that were already removed from the message map.
+     */
+    private void purge() {
+        int[] purged = {0};
+        messageQueue.removeIf(m -> {
+            if (isQueued(m))
+                return false;
+            ++purged[0];
+            return true;
+        });
+        removedInQueue.addAndGet(-purged[0]);
     }
 
     /**
-     * clear the message map and queue
+     * clear the message map, queue, spilled, leased and scheduled messages
      * @return true if the table was empty at the time of the request
      */
     boolean cleanup() {
-        boolean result = messageMap.isEmpty() && messageQueue.isEmpty();
+        boolean result = messageMap.isEmpty() && tail.size() == 0 && leases.isEmpty() && scheduled.isEmpty();
         messageMap.clear();
         messageQueue.clear();
+        removedInQueue.set(0);
+        queued.set(0);
+        tail.clear();
+        leases.clear();
+        leaseExpiry.clear();
+        scheduled.clear();
+        indexes.values().forEach(ParamIndex::clear);
         return result;
     }
 }
@@ -1,7 +1,5 @@
 package com.zvil.md;
 
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Each sender instantiates an object of this class and uses it to send messages and other sender operations.
  * @author Zvi Lifshitz
@@ -9,7 +7,8 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Sender {
     private final int senderID;
     private ReceptionCallbackInterface callback = null;
-    private final ConcurrentHashMap<String, Message> messageMap;
+    private volatile int weight = 1;
+    private final MessageIdMap<Receiver> messageMap;     // the receiver of each awaiting message
 
     /**
      * The class constructor (internal) receives a sender ID.
@@ -17,7 +16,7 @@ public class Sender {
      */
     Sender(int senderID) {
         this.senderID = senderID;
-        messageMap = new ConcurrentHashMap<>();
+        messageMap = new MessageIdMap<>();
     }
 
     void setCallback(ReceptionCallbackInterface callback) {
@@ -28,6 +27,14 @@ public class Sender {
         return senderID;
     }
     
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+    
+    int getWeight() {
+        return weight;
+    }
+    
     /**
      * Send a message to the given receiver.
      * @param message       The message to send
@@ -37,15 +44,31 @@ public class Sender {
      * @return the ID of the sent message.
      */
     public String sendMessage(Message message, int receiverID, boolean needsReceipt) {
-        String id = Message.generateMessageID();
-        message.setMessageID(id);
+        return sendMessage(message, receiverID, needsReceipt, 0);
+    }
+    
+    /**
+     * Send a message to the given receiver, to be delivered at a given time. The message is persisted immediately, and until
+     * it is delivered it can be checked by {@link #isAwaiting(java.lang.String) isAwaiting()} and removed by
+     * {@link #removeMessage(java.lang.String) removeMessage()}, but it is not visible to the receiver.
+     * @param message       The message to send
+     * @param receiverID    Receiver ID
+     * @param needsReceipt  set to true if you want to get notified (through the callback object provided when calling
+     * {@link Dispatcher#createSender(java.lang.String, com.zvil.md.ReceptionCallbackInterface) Dispatcher.createSender()}.
+     * @param deliverAt     delivery time in milliseconds since the epoch. A time that has already passed (e.g. 0) means
+     *                      immediate delivery.
+     * @return the ID of the sent message.
+     */
+    public String sendMessage(Message message, int receiverID, boolean needsReceipt, long deliverAt) {
+        message.generateMessageID();
         message.setSender(this);
         Receiver receiver = Dispatcher.createReceiver(receiverID);
         message.setReceiver(receiver);
         message.setNeedsReceipt(needsReceipt);
+        message.setDeliverAt(deliverAt);
         addMessage(message);
         receiver.sendMessage(message);
-        return id;
+        return message.getMessageID();
     }
     
     /**
@@ -63,28 +86,20 @@ public class Sender {
      * @return  true if and only if the message was still awaiting at the dispatcher.
      */
     public boolean removeMessage(String messageID) {
-        Message message = deleteMessage(messageID);
-        if (message == null)
+        Receiver receiver = messageMap.remove(messageID);
+        if (receiver == null)
             return false;
-        message.getReceiver().deleteMessage(message);
+        receiver.deleteMessage(MessageIdMap.high(messageID), MessageIdMap.low(messageID));
         return true;
     }
     
     /**
-     * Add a message to the message map
+     * Add a message to the message map. The map only refers to the receiver of the message, so it does not keep
+     * messages spilled by the receiver on the heap.
      * @param message
      */
     void addMessage(Message message) {
-        messageMap.put(message.getMessageID(), message);
-    }
-    
-    /**
-     * Remove a message from the message table
-     * @param messageID message ID
-     * @return the removed message or null if the message is not in the map
-     */
-    Message deleteMessage(String messageID) {
-        return messageMap.remove(messageID);
+        messageMap.put(message.getIdHigh(), message.getIdLow(), message.getReceiver());
     }
     
     /**
@@ -93,7 +108,7 @@ public class Sender {
      * @param message 
      */
     void retreivedMessage(Message message) {
-        deleteMessage(message.getMessageID());
+        messageMap.remove(message.getIdHigh(), message.getIdLow(), null);
         if (message.isNeedsReceipt() && callback != null)
             callback.receptionEvent(message);
     }
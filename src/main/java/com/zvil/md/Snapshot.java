@@ -0,0 +1,226 @@
+package com.zvil.md;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A binary snapshot of the committed messages, used to speed up restore from persistence.
+ * <p>
+ * The file starts with a header (magic number, format version and the serial high-water mark), followed by the message
+ * records (see {@link MessageRecord}), each preceded by a marker byte, and ends with the number of records. Since each
+ * record carries its sender and receiver IDs, the per-sender in-flight sets are rebuilt from the same records.
+ * <p>
+ * A snapshot holds exactly the messages that were committed, and not deleted, when the transaction with the mark was
+ * committed. It is not taken by scanning the in-memory queues, which change while they are scanned. Instead, each
+ * snapshot is {@link #merge(Path, Path, long[], long, Path) merged} from the previous one and a log of the messages
+ * written since then, minus the serials deleted since then. The first snapshot is written while restoring, before the
+ * message dispatcher is used.
+ * @author Zvi Lifshitz
+ */
+class Snapshot {
+    private static final int MAGIC = 0x4D44534E;    // "MDSN"
+    private static final int VERSION = 4;           // 2: subject and parameter values in stored form, 3: delivery time,
+                                                    // 4: codec tag in compressed values
+    private static final int HEADER_SIZE = 16;
+    private static final byte RECORD = 1;
+    private static final byte END = 0;
+
+    private final long mark;
+    private final List<Message> messages;
+
+    private Snapshot(long mark, List<Message> messages) {
+        this.mark = mark;
+        this.messages = messages;
+    }
+
+    /**
+     * @return the serial high-water mark of the snapshot
+     */
+    long getMark() {
+        return mark;
+    }
+
+    /**
+     * @return the messages of the snapshot, in the order they were written
+     */
+    List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, which replaces the snapshot file when the writer is committed, so a
+     * failure leaves the previous snapshot intact.
+     */
+    static class Writer implements Closeable {
+        private final Path file;
+        private final Path temp;
+        private final DataOutputStream out;
+        private long count;
+        private boolean committed;
+
+        /**
+         * @param file  the snapshot file
+         * @param mark  the serial high-water mark
+         * @throws IOException if the temporary file cannot be written
+         */
+        Writer(Path file, long mark) throws IOException {
+            this.file = file;
+            temp = file.resolveSibling(file.getFileName() + ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mark);
+        }
+
+        void write(Message message) throws IOException {
+            out.writeByte(RECORD);
+            MessageRecord.write(message, out);
+            ++count;
+        }
+
+        /**
+         * Copy an encoded record.
+         * @param buffer    a buffer holding the record
+         * @param from      start offset of the record
+         * @param to        end offset of the record
+         */
+        void copy(ByteBuffer buffer, int from, int to) throws IOException {
+            out.writeByte(RECORD);
+            byte[] bytes = new byte[to - from];
+            buffer.get(from, bytes);
+            out.write(bytes);
+            ++count;
+        }
+
+        /**
+         * Complete the snapshot and replace the snapshot file with it.
+         */
+        void commit() throws IOException {
+            out.writeByte(END);
+            out.writeLong(count);
+            out.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Discard the snapshot unless it was committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Write a new snapshot from the previous one and a log of the messages written since it was taken.
+     * @param previous  the previous snapshot
+     * @param log       the log, a sequence of records each preceded by a marker byte, as written by
+     *                  {@link #log(Message, DataOutputStream) log()}
+     * @param removed   serials of the messages deleted since the previous snapshot, sorted
+     * @param mark      the serial high-water mark of the new snapshot
+     * @param file      the new snapshot file. Can be the same as the previous one.
+     * @throws IOException if reading or writing fails, or the previous snapshot is not complete.
+     */
+    static void merge(Path previous, Path log, long[] removed, long mark, Path file) throws IOException {
+        try (Writer writer = new Writer(file, mark)) {
+            try (FileChannel channel = FileChannel.open(previous, StandardOpenOption.READ)) {
+                ByteBuffer in = map(channel);
+                if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                    throw new IOException("Not a snapshot: " + previous);
+                in.position(HEADER_SIZE);
+                long count = copyRecords(in, removed, writer);
+                if (in.get() != END || in.getLong() != count)
+                    throw new IOException("Incomplete snapshot: " + previous);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Incomplete snapshot: " + previous, e);
+            }
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                ByteBuffer in = map(channel);
+                copyRecords(in, removed, writer);
+                if (in.hasRemaining())
+                    throw new IOException("Corrupt log: " + log);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Incomplete log: " + log, e);
+            }
+            writer.commit();
+        }
+    }
+
+    /**
+     * Append a message to a log of written messages (see {@link #merge(Path, Path, long[], long, Path) merge()}).
+     * @param message   the message. Its serial must be assigned.
+     * @param log       the log
+     * @throws IOException if writing fails
+     */
+    static void log(Message message, DataOutputStream log) throws IOException {
+        log.writeByte(RECORD);
+        MessageRecord.write(message, log);
+    }
+
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        if (channel.size() > Integer.MAX_VALUE)
+            throw new IOException("Snapshot too large");
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Copy the records that are not removed, up to the end marker or the end of the buffer.
+     * @return the number of records read, including removed ones
+     */
+    private static long copyRecords(ByteBuffer in, long[] removed, Writer writer) throws IOException {
+        long count = 0;
+        while (in.hasRemaining() && in.get(in.position()) == RECORD) {
+            int from = in.position() + 1;
+            in.position(from);
+            MessageRecord.skip(in);
+            if (Arrays.binarySearch(removed, MessageRecord.readSerial(in, from)) < 0)
+                writer.copy(in, from, in.position());
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Read a snapshot. The file is memory-mapped and decoded in one pass.
+     * @param file  the snapshot file
+     * @return the snapshot, or null if the file does not exist or is not a complete snapshot of the current version.
+     * @throws IOException if reading fails
+     */
+    static Snapshot read(Path file) throws IOException {
+        if (!Files.isRegularFile(file))
+            return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                return null;
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                return null;
+            long mark = in.getLong();
+            List<Message> messages = new ArrayList<>();
+            while (in.get() == RECORD)
+                messages.add(MessageRecord.read(in));
+            if (in.getLong() != messages.size())
+                return null;
+            return new Snapshot(mark, messages);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.zvil.md;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Off-heap storage for the tail of a receiver's message queue.
+ * <p>
+ * Messages are kept as {@link MessageRecord records}, each prefixed by its length, appended to direct byte buffer
+ * segments. The first segment has {@value #MIN_SEGMENT_SIZE} bytes and each next one doubles up to
+ * {@value #MAX_SEGMENT_SIZE} bytes (or more for a record that does not fit in one), so a receiver that spills a few
+ * messages does not reserve much direct memory. The bytes held by the segments of all stores are counted (see
+ * {@link #getOffHeapBytes()}). Records are read back in the order they were appended. A message ID map points to the
+ * position of every live record, so a record can also be taken out of order; such a record is then left in place and
+ * skipped by the sequential reader. A segment is released once the reader has passed it, and all segments are released
+ * when the store becomes empty.
+ * <p>
+ * A message that was not written to the persistence medium yet is spilled with serial 0, and its managed instance is
+ * kept by the dispatcher until it is written (see {@link Dispatcher#detach(Message)}). A record with serial 0 that is
+ * taken from the store is replaced by that instance, and {@link #setSerial(long, long, long)} sets the serial in the
+ * record once it is known.
+ * <p>
+ * A position is the segment number in the high 32 bits and the offset in the segment in the low 32 bits. All methods
+ * are synchronized, except {@link #size()}.
+ * @author Zvi Lifshitz
+ */
+class SpillStore {
+    private static final int MIN_SEGMENT_SIZE = 1 << 12;
+    private static final int MAX_SEGMENT_SIZE = 1 << 20;
+    private static final LongAdder offHeapBytes = new LongAdder();
+
+    /**
+     * Exposes the internal array so a record can be copied to a segment without an intermediate copy.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private final ArrayList<ByteBuffer> segments;  // segments.get(i) is segment number firstSegment + i
+    private int firstSegment;
+    private int readSegment;
+    private int readOffset;
+    private int nextSegmentSize = MIN_SEGMENT_SIZE;
+    private long allocated;     // bytes in the segments that were not released
+    private final MessageIdMap<Long> positions;
+    private final RecordBuffer buffer;
+    private final DataOutputStream out;
+    private volatile int size;
+
+    SpillStore() {
+        segments = new ArrayList<>();
+        positions = new MessageIdMap<>();
+        buffer = new RecordBuffer();
+        out = new DataOutputStream(buffer);
+    }
+
+    /**
+     * @return the number of bytes held by the segments of all stores
+     */
+    static long getOffHeapBytes() {
+        return offHeapBytes.sum();
+    }
+
+    /**
+     * @return the number of messages in the store
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Append a message.
+     * @param message   the message
+     */
+    synchronized void append(Message message) {
+        buffer.reset();
+        try {
+            MessageRecord.write(message, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);      // not expected when writing to memory
+        }
+        int length = buffer.size();
+        ByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.remaining() < length + 4) {
+            segment = ByteBuffer.allocateDirect(Math.max(nextSegmentSize, length + 4));
+            nextSegmentSize = Math.min(nextSegmentSize * 2, MAX_SEGMENT_SIZE);
+            allocated(segment.capacity());
+            segments.add(segment);
+        }
+        long position = ((long) (firstSegment + segments.size() - 1) << 32) | segment.position();
+        segment.putInt(length);
+        segment.put(buffer.array(), 0, length);
+        positions.put(message.getIdHigh(), message.getIdLow(), position);
+        ++size;
+    }
+
+    /**
+     * Take the first message in the store.
+     * @return the message or null if the store is empty. The sender and receiver objects are not set in the message.
+     */
+    synchronized Message poll() {
+        while (size > 0) {
+            ByteBuffer segment = segments.get(readSegment - firstSegment);
+            if (readOffset >= segment.position()) {
+                segments.set(readSegment - firstSegment, null);
+                allocated(-segment.capacity());
+                ++readSegment;
+                readOffset = 0;
+                continue;
+            }
+            int offset = readOffset;
+            readOffset += 4 + segment.getInt(offset);
+            if (isLive(segment, readSegment, offset)) {
+                trim();
+                return take(segment, offset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take a specific message.
+     * @param idHigh    high half of the message ID
+     * @param idLow     low half of the message ID
+     * @return the message or null if it is not in the store. The sender and receiver objects are not set in the message.
+     */
+    synchronized Message remove(long idHigh, long idLow) {
+        Long position = positions.get(idHigh, idLow);
+        if (position == null)
+            return null;
+        return take(segments.get((int) (position >>> 32) - firstSegment), (int) (long) position);
+    }
+
+    /**
+     * Set the serial in the record of a message that was spilled before it was written to the persistence medium.
+     * @param idHigh    high half of the message ID
+     * @param idLow     low half of the message ID
+     * @param serial    the serial
+     */
+    synchronized void setSerial(long idHigh, long idLow, long serial) {
+        Long position = positions.get(idHigh, idLow);
+        if (position != null)
+            segments.get((int) (position >>> 32) - firstSegment).putLong((int) (long) position + 4, serial);
+    }
+
+    /**
+     * Take the messages that satisfy a condition, in order. Every message up to the last one taken is decoded to be
+     * tested.
+     * @param condition the condition
+     * @param limit     maximal number of messages to take
+     * @return the messages taken. The sender and receiver objects are not set in the messages.
+     */
+    synchronized List<Message> removeIf(Predicate<Message> condition, int limit) {
+        List<Message> result = new ArrayList<>();
+        if (limit > 0) {
+            scan((segment, offset, message) -> {
+                if (condition.test(message))
+                    result.add(release(message));
+                return result.size() < limit;
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Call an action for every message in the store, in order.
+     * @param action    the action. The sender and receiver objects are not set in the messages.
+     */
+    synchronized void forEach(Consumer<Message> action) {
+        scan((segment, offset, message) -> {
+            action.accept(message);
+            return true;
+        });
+    }
+
+    synchronized void clear() {
+        positions.clear();
+        size = 0;
+        reset();
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return true to continue the scan, false to stop it
+         */
+        boolean visit(ByteBuffer segment, int offset, Message message);
+    }
+
+    private void scan(RecordVisitor visitor) {
+        int segmentNumber = readSegment;
+        int offset = readOffset;
+        int last = firstSegment + segments.size() - 1;
+        while (size > 0 && segmentNumber <= last) {
+            ByteBuffer segment = segments.get(segmentNumber - firstSegment);
+            if (offset >= segment.position()) {
+                ++segmentNumber;
+                offset = 0;
+                continue;
+            }
+            int length = segment.getInt(offset);
+            if (isLive(segment, segmentNumber, offset) && !visitor.visit(segment, offset, read(segment, offset)))
+                return;
+            offset += 4 + length;
+        }
+    }
+
+    private boolean isLive(ByteBuffer segment, int segmentNumber, int offset) {
+        Long position = positions.get(MessageRecord.readIdHigh(segment, offset + 4), MessageRecord.readIdLow(segment, offset + 4));
+        return position != null && position == (((long) segmentNumber << 32) | offset);
+    }
+
+    private Message take(ByteBuffer segment, int offset) {
+        return release(read(segment, offset));
+    }
+
+    /**
+     * Mark the record of a message as taken
+     * @param message   the message, decoded from its record
+     * @return the message, or its managed instance if it was not written to the persistence medium when it was spilled
+     */
+    private Message release(Message message) {
+        positions.remove(message.getIdHigh(), message.getIdLow(), null);
+        if (--size == 0)
+            reset();
+        return message.getSerial() == 0 ? Dispatcher.unspill(message) : message;
+    }
+
+    private static Message read(ByteBuffer segment, int offset) {
+        return MessageRecord.read(segment.duplicate().position(offset + 4));
+    }
+
+    private void allocated(long bytes) {
+        allocated += bytes;
+        offHeapBytes.add(bytes);
+    }
+
+    /**
+     * Drop consumed segments from the head of the segment list once they make up most of it.
+     */
+    private void trim() {
+        int consumed = readSegment - firstSegment;
+        if (consumed > 16 && consumed * 2 > segments.size()) {
+            segments.subList(0, consumed).clear();
+            firstSegment = readSegment;
+        }
+    }
+
+    /**
+     * Release all segments. Segment numbers keep increasing so positions of taken records are never reused.
+     */
+    private void reset() {
+        allocated(-allocated);
+        nextSegmentSize = MIN_SEGMENT_SIZE;
+        firstSegment += segments.size();
+        segments.clear();
+        readSegment = firstSegment;
+        readOffset = 0;
+    }
+}
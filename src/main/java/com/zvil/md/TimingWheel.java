@@ -0,0 +1,190 @@
+package com.zvil.md;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel that calls an action on items when their time is due.
+ * <p>
+ * Time is divided into ticks. The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots each: level 0 holds the
+ * timers due within {@value #SLOTS} ticks, one slot per tick, and each higher level covers {@value #SLOTS} times the
+ * range of the level below it. Whenever a level completes a rotation, the next slot of the level above it is cascaded
+ * down. Each slot is a linked list of timers, so inserting a timer costs O(1) regardless of how many are pending.
+ * <p>
+ * The wheel is owned by a single daemon thread, started on the first call to {@link #schedule(long, Object)
+ * schedule()}. Other threads hand timers over through a lock-free queue. When no timers are pending the thread parks
+ * until a new one arrives.
+ * <p>
+ * Timers cannot be cancelled; the action is expected to ignore items that are no longer relevant. As a timer keeps its
+ * item until its time is due, items should be small references rather than the objects they refer to.
+ * @param <T> the item type
+ * @author Zvi Lifshitz
+ */
+class TimingWheel<T> {
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private static class Timer<T> {
+        final long deadline;    // in ticks
+        final T item;
+        Timer<T> next;
+
+        Timer(long deadline, T item) {
+            this.deadline = deadline;
+            this.item = item;
+        }
+    }
+
+    private final String name;
+    private final long tickMillis;
+    private final Consumer<T> action;
+    private final ConcurrentLinkedQueue<Timer<T>> incoming;
+    private final AtomicBoolean idle;
+    private volatile Thread ticker;
+
+    // The following fields are only accessed by the ticker thread
+    private final Timer<T>[][] wheel;
+    private long currentTick;   // the last tick processed
+    private int count;
+
+    /**
+     * @param name          name of the ticker thread
+     * @param tickMillis    tick length in milliseconds
+     * @param action        the action to call on due items
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(String name, long tickMillis, Consumer<T> action) {
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.action = action;
+        incoming = new ConcurrentLinkedQueue<>();
+        idle = new AtomicBoolean();
+        wheel = new Timer[LEVELS][SLOTS];
+    }
+
+    /**
+     * Schedule an item. The action is called on the item not before the given time and, unless the ticker thread falls
+     * behind, no later than one tick after it.
+     * @param time  time in milliseconds since the epoch
+     * @param item  the item
+     */
+    void schedule(long time, T item) {
+        // Rounded up without adding to the time, which may be as late as Long.MAX_VALUE
+        long deadline = Math.floorDiv(time, tickMillis) + (Math.floorMod(time, tickMillis) != 0 ? 1 : 0);
+        incoming.add(new Timer<>(deadline, item));
+        Thread thread = ticker;
+        if (thread == null)
+            thread = start();
+        if (idle.compareAndSet(true, false))
+            LockSupport.unpark(thread);
+    }
+
+    private synchronized Thread start() {
+        if (ticker == null) {
+            ticker = new Thread(this::run, name);
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+        return ticker;
+    }
+
+    /**
+     * Stop the ticker thread and drop all pending timers. A later call to {@link #schedule(long, Object) schedule()}
+     * starts a new thread.
+     */
+    synchronized void shutdown() {
+        Thread thread = ticker;
+        if (thread == null)
+            return;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Timer<T>[] level : wheel)
+            Arrays.fill(level, null);
+        incoming.clear();
+        count = 0;
+        ticker = null;
+    }
+
+    private void run() {
+        currentTick = System.currentTimeMillis() / tickMillis;
+        while (!Thread.currentThread().isInterrupted()) {
+            Timer<T> timer;
+            while ((timer = incoming.poll()) != null)
+                insert(timer);
+            long now = System.currentTimeMillis();
+            long nowTick = now / tickMillis;
+            if (count == 0)
+                currentTick = Math.max(currentTick, nowTick);
+            while (currentTick < nowTick)
+                advance();
+            if (count == 0) {
+                idle.set(true);
+                if (incoming.isEmpty())
+                    LockSupport.park(this);
+                idle.set(false);
+            } else
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos((currentTick + 1) * tickMillis - now));
+        }
+    }
+
+    /**
+     * Process the next tick: cascade higher level slots whose time has come, then fire the timers of the tick.
+     */
+    private void advance() {
+        long tick = ++currentTick;
+        for (int level = 1; level < LEVELS && (tick & ((1L << (SLOT_BITS * level)) - 1)) == 0; level++) {
+            int slot = (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+            Timer<T> timer = wheel[level][slot];
+            wheel[level][slot] = null;
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                --count;
+                insert(timer);
+                timer = next;
+            }
+        }
+        int slot = (int) tick & (SLOTS - 1);
+        Timer<T> timer = wheel[0][slot];
+        wheel[0][slot] = null;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            --count;
+            insert(timer);      // fires it, unless it is a long timer that was clamped to the range of the wheel
+            timer = next;
+        }
+    }
+
+    private void insert(Timer<T> timer) {
+        long delta = timer.deadline - currentTick;
+        if (delta <= 0) {
+            fire(timer.item);
+            return;
+        }
+        long position = delta > MAX_TICKS ? currentTick + MAX_TICKS : timer.deadline;
+        int level = 0;
+        while (level < LEVELS - 1 && position - currentTick >= 1L << (SLOT_BITS * (level + 1)))
+            ++level;
+        int slot = (int) (position >>> (SLOT_BITS * level)) & (SLOTS - 1);
+        timer.next = wheel[level][slot];
+        wheel[level][slot] = timer;
+        ++count;
+    }
+
+    private void fire(T item) {
+        try {
+            action.accept(item);
+        } catch (RuntimeException e) {
+            // Keep the ticker alive for the other timers
+        }
+    }
+}
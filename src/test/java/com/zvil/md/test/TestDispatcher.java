@@ -1,11 +1,21 @@
 package com.zvil.md.test;
 
+import com.zvil.md.CompressionCodec;
 import com.zvil.md.Dispatcher;
 import com.zvil.md.JwtService;
 import com.zvil.md.Message;
 import com.zvil.md.Receiver;
 import com.zvil.md.ReceptionCallbackInterface;
 import com.zvil.md.Sender;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.*;
@@ -103,6 +113,25 @@ public class TestDispatcher {
         assertNull(receiver.getNextMessage());
     }
 
+    @Test
+    public void testUnknownMessageID() {
+        int sender1 = 101;
+        int receiver1 = 202;
+        Sender sender = createSender(sender1, null);
+        Message msg = new Message();
+        msg.setSubject(SUBJECT + 0);
+        String id = sender.sendMessage(msg, receiver1, false);
+        Receiver receiver = createReceiver(receiver1);
+        assertNull(receiver.getMessage("not a message ID"));
+        assertNull(receiver.getMessage(id.toUpperCase().replace('-', '_')));
+        assertFalse(sender.isAwaiting(java.util.UUID.randomUUID().toString()));
+        assertFalse(sender.removeMessage(null));
+        assertTrue(sender.isAwaiting(id.toUpperCase()));
+        msg = receiver.getMessage(id);
+        assertEquals(msg.getMessageID(), id);
+        assertNull(receiver.getNextMessage());
+    }
+
     @Test
     public void testCheckIfStillAwaiting() {
         int sender1 = 101;
@@ -158,6 +187,272 @@ public class TestDispatcher {
         assertNull(receiver.getNextMessage());
     }
 
+    @Test
+    public void testLeaseAndAck() {
+        int sender1 = 101;
+        int receiver1 = 202;
+        Sender sender = createSender(sender1, null);
+        for (int i = 0; i < 10; i++) {
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + i);
+            sender.sendMessage(msg, receiver1, false);
+        }
+        Receiver receiver = createReceiver(receiver1);
+        String[] ids = new String[10];
+        for (int i = 0; i < 10; i++) {
+            Message msg = receiver.receive(60000);
+            assertEquals(msg.getSubject(), SUBJECT + i);
+            ids[i] = msg.getMessageID();
+            assertTrue(sender.isAwaiting(ids[i]));
+        }
+        assertNull(receiver.receive(60000));
+        assertNull(receiver.getNextMessage());
+        assertEquals(10, receiver.ack(ids));
+        assertEquals(0, receiver.ack(ids));
+        for (String id : ids)
+            assertFalse(sender.isAwaiting(id));
+    }
+
+    @Test
+    public void testLeaseExpiry() throws InterruptedException {
+        int sender1 = 101;
+        int receiver1 = 202;
+        Sender sender = createSender(sender1, null);
+        for (int i = 0; i < 2; i++) {
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + i);
+            sender.sendMessage(msg, receiver1, false);
+        }
+        Receiver receiver = createReceiver(receiver1);
+        Message msg = receiver.receive(50);
+        assertEquals(msg.getSubject(), SUBJECT + 0);
+        Thread.sleep(100);
+        assertEquals(0, receiver.ack(msg.getMessageID()));
+        // The expired message returns to the tail of the queue
+        assertEquals(receiver.getNextMessage().getSubject(), SUBJECT + 1);
+        msg = receiver.receive(60000);
+        assertEquals(msg.getSubject(), SUBJECT + 0);
+        assertTrue(sender.removeMessage(msg.getMessageID()));
+        assertEquals(0, receiver.ack(msg.getMessageID()));
+        assertNull(receiver.receive(60000));
+        // An expired message can be retrieved by its ID
+        msg = new Message();
+        msg.setSubject(SUBJECT + 2);
+        String messageID = sender.sendMessage(msg, receiver1, false);
+        assertEquals(receiver.receive(50).getMessageID(), messageID);
+        Thread.sleep(100);
+        assertEquals(receiver.getMessage(messageID).getSubject(), SUBJECT + 2);
+    }
+
+    @Test
+    public void testCompression() {
+        int sender1 = 101;
+        int receiver1 = 202;
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 200; i++)
+            json.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"},");
+        json.append("{}]}");
+        String large = json.toString();
+        String marked = "\u0001" + SUBJECT;
+        Dispatcher.setCompression(256, null);
+        try {
+            Sender sender = createSender(sender1, null);
+            Message msg = new Message();
+            msg.setSubject(large);
+            msg.putParam("large", large);
+            msg.putParam("small", SUBJECT);
+            msg.putParam("marked", marked);
+            sender.sendMessage(msg, receiver1, false);
+            msg = new Message();
+            msg.setSubject(SUBJECT);
+            sender.sendMessage(msg, receiver1, false);
+            // A custom codec for data made of two equal halves, which must still decode its values after compression is disabled
+            Dispatcher.setCompression(256, new CompressionCodec() {
+                @Override
+                public byte[] compress(byte[] data) {
+                    return Arrays.copyOf(data, data.length / 2);
+                }
+
+                @Override
+                public byte[] decompress(byte[] data) {
+                    byte[] result = Arrays.copyOf(data, data.length * 2);
+                    System.arraycopy(data, 0, result, data.length, data.length);
+                    return result;
+                }
+
+                @Override
+                public char getTag() {
+                    return 'H';
+                }
+            });
+            msg = new Message();
+            msg.setSubject(large.substring(0, 400) + large.substring(0, 400));
+            sender.sendMessage(msg, receiver1, false);
+        } finally {
+            Dispatcher.setCompression(0, null);
+        }
+        Receiver receiver = createReceiver(receiver1);
+        Message msg = receiver.getNextMessage();
+        assertEquals(msg.getSubject(), large);
+        assertEquals(msg.getParam("large"), large);
+        assertEquals(msg.getParam("small"), SUBJECT);
+        assertEquals(msg.getParam("marked"), marked);
+        assertEquals(msg.getParams().get("large"), large);
+        assertEquals(msg.getParams().size(), 3);
+        Map<String, String> params = msg.getParams();
+        assertThrows(UnsupportedOperationException.class, () -> params.put("small", large));
+        assertThrows(UnsupportedOperationException.class, () -> params.remove("small"));
+        assertEquals(receiver.getNextMessage().getSubject(), SUBJECT);
+        assertEquals(receiver.getNextMessage().getSubject(), large.substring(0, 400) + large.substring(0, 400));
+        assertNull(receiver.getNextMessage());
+    }
+
+    @Test
+    public void testSelectiveReceive() {
+        int sender1 = 101;
+        int receiver1 = 202;
+        Sender sender = createSender(sender1, null);
+        Receiver receiver = createReceiver(receiver1);
+        for (int i = 0; i < 30; i++) {
+            if (i == 10)
+                receiver.addIndex("orderId");
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + i);
+            msg.putParam("orderId", String.valueOf(i % 3));
+            msg.putParam("customer", String.valueOf(i % 5));
+            sender.sendMessage(msg, receiver1, false);
+        }
+        // Indexed key
+        List<Message> messages = receiver.getMessages("orderId", "1");
+        assertEquals(10, messages.size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(messages.get(i).getSubject(), SUBJECT + (i * 3 + 1));
+        assertTrue(receiver.getMessages("orderId", "1").isEmpty());
+        // Key without an index
+        messages = receiver.getMessages("customer", "4");
+        assertEquals(4, messages.size());
+        assertEquals(messages.get(0).getSubject(), SUBJECT + 9);    // 4 and 19 were retrieved with orderId 1
+        assertEquals(messages.get(3).getSubject(), SUBJECT + 29);
+        // Predicate
+        Message msg = receiver.getNextMessage(m -> m.getSubject().endsWith("5"));
+        assertEquals(msg.getSubject(), SUBJECT + 5);
+        assertNull(receiver.getNextMessage(m -> m.getSubject().equals(SUBJECT + 5)));
+        // The rest in FIFO order
+        for (int i = 0; i < 30; i++) {
+            if (i % 3 == 1 || i % 5 == 4 || i == 5)
+                continue;
+            msg = receiver.getNextMessage();
+            assertEquals(msg.getSubject(), SUBJECT + i);
+        }
+        assertNull(receiver.getNextMessage());
+        assertTrue(receiver.getMessages("orderId", "0").isEmpty());
+    }
+
+    @Test
+    public void testScheduledDelivery() throws InterruptedException {
+        int sender1 = 101;
+        int receiver1 = 202;
+        Sender sender = createSender(sender1, null);
+        long now = System.currentTimeMillis();
+        String[] ids = new String[4];
+        for (int i = 0; i < 4; i++) {
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + i);
+            ids[i] = sender.sendMessage(msg, receiver1, false, i == 0 ? 0 : now + 100 * i);
+        }
+        Receiver receiver = createReceiver(receiver1);
+        assertEquals(receiver.getNextMessage().getSubject(), SUBJECT + 0);
+        assertNull(receiver.getNextMessage());
+        assertNull(receiver.getMessage(ids[1]));
+        assertTrue(sender.isAwaiting(ids[1]));
+        assertTrue(sender.removeMessage(ids[2]));
+        Message never = new Message();
+        never.setSubject(SUBJECT + "never");
+        String neverID = sender.sendMessage(never, receiver1, false, Long.MAX_VALUE);
+        Thread.sleep(500);
+        assertEquals(receiver.getNextMessage().getSubject(), SUBJECT + 1);
+        assertEquals(receiver.getNextMessage().getSubject(), SUBJECT + 3);
+        assertNull(receiver.getNextMessage());
+        assertFalse(sender.isAwaiting(ids[1]));
+        assertTrue(sender.removeMessage(neverID));
+    }
+
+    @Test
+    public void testTieredInbox() {
+        int sender1 = 101;
+        int receiver1 = 202;
+        Dispatcher.setInboxBudget(10, 0);
+        try {
+            Sender sender = createSender(sender1, null);
+            Receiver receiver = createReceiver(receiver1);
+            receiver.addIndex("orderId");
+            String[] ids = new String[50];
+            for (int i = 0; i < 50; i++) {
+                Message msg = new Message();
+                msg.setSubject(SUBJECT + i);
+                msg.putParam("orderId", String.valueOf(i));
+                ids[i] = sender.sendMessage(msg, receiver1, false);
+            }
+            // Spilled messages are found by ID and by index
+            assertEquals(receiver.getMessage(ids[40]).getSubject(), SUBJECT + 40);
+            assertTrue(sender.isAwaiting(ids[30]));
+            assertTrue(sender.removeMessage(ids[30]));
+            assertFalse(sender.isAwaiting(ids[30]));
+            assertNull(receiver.getMessage(ids[30]));
+            List<Message> messages = receiver.getMessages("orderId", "20");
+            assertEquals(1, messages.size());
+            assertEquals(messages.get(0).getSubject(), SUBJECT + 20);
+            assertEquals(receiver.getNextMessage(m -> m.getSubject().equals(SUBJECT + 45)).getSubject(), SUBJECT + 45);
+            // The rest in FIFO order, paged in from the spilled tail
+            for (int i = 0; i < 50; i++) {
+                if (i == 20 || i == 30 || i == 40 || i == 45)
+                    continue;
+                Message msg = receiver.getNextMessage();
+                assertEquals(msg.getSubject(), SUBJECT + i);
+                assertFalse(sender.isAwaiting(ids[i]));
+            }
+            assertNull(receiver.getNextMessage());
+        } finally {
+            Dispatcher.setInboxBudget(0, 0);
+        }
+    }
+
+    @Test
+    public void testFairQueuing() {
+        int sender1 = 101;
+        int sender2 = 102;
+        int receiver1 = 202;
+        Dispatcher.setFairQueuing(true);
+        try {
+            Sender flooder = createSender(sender1, null);
+            Sender other = createSender(sender2, null);
+            Dispatcher.setSenderWeight(sender1, 2);
+            String[] ids = new String[20];
+            for (int i = 0; i < 20; i++) {
+                Message msg = new Message();
+                msg.setSubject(SUBJECT + i + " from " + sender1);
+                ids[i] = flooder.sendMessage(msg, receiver1, false);
+            }
+            for (int i = 0; i < 3; i++) {
+                Message msg = new Message();
+                msg.setSubject(SUBJECT + i + " from " + sender2);
+                other.sendMessage(msg, receiver1, false);
+            }
+            assertTrue(flooder.removeMessage(ids[3]));
+            Receiver receiver = createReceiver(receiver1);
+            // Two messages of the flooder for every message of the other sender, each sender in FIFO order
+            String[] expected = {"0 from 101", "1 from 101", "0 from 102", "2 from 101", "4 from 101", "1 from 102",
+                "5 from 101", "6 from 101", "2 from 102"};
+            for (String subject : expected)
+                assertEquals(receiver.getNextMessage().getSubject(), SUBJECT + subject);
+            for (int i = 7; i < 20; i++)
+                assertEquals(receiver.getNextMessage().getSubject(), SUBJECT + i + " from " + sender1);
+            assertNull(receiver.getNextMessage());
+        } finally {
+            Dispatcher.setFairQueuing(false);
+        }
+    }
+
     private int nextNotification = 0;
     @Test
     public void testNotifyReception() {
@@ -243,4 +538,100 @@ public class TestDispatcher {
             assertEquals(msg.getSubject(), SUBJECT + i + " from " + S1 + ns);
         }
     }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        int S1 = 101;
+        int R1 = 201;
+        int SENDERS = 4;
+        int RECEIVERS = 3;
+        Path snapshot = Files.createTempFile("md", ".snapshot");
+        Dispatcher.cleanup();
+        Dispatcher.init(jwtSecret, JPA_MANAGER, snapshot, 0);
+        Sender[] senders = new Sender[SENDERS];
+        Receiver[] receivers = new Receiver[RECEIVERS];
+        for (int i = 0; i < SENDERS; i++)
+            senders[i] = createSender(S1 + i, null);
+        for (int i = 0; i < 100; i++) {
+            int ns = i % SENDERS;
+            int nr = i % RECEIVERS;
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + i + " from " + S1 + ns);
+            msg.putParam("index", String.valueOf(i));
+            senders[ns].sendMessage(msg, R1 + nr, false);
+        }
+        Dispatcher.checkpoint();
+
+        // Changes after the checkpoint: retrieve the first message of each receiver and send one more message to each
+        for (int i = 0; i < RECEIVERS; i++) {
+            receivers[i] = createReceiver(R1 + i);
+            assertEquals(receivers[i].getNextMessage().getSubject(), SUBJECT + i + " from " + S1 + i);
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + (100 + i));
+            senders[0].sendMessage(msg, R1 + i, false);
+        }
+
+        Dispatcher.cleanup();
+        Dispatcher.init(jwtSecret, JPA_MANAGER, snapshot, 0);
+
+        for (int i = 0; i < RECEIVERS; i++)
+            receivers[i] = createReceiver(R1 + i);
+        Message msg;
+        for (int i = RECEIVERS; i < 100; i++) {
+            int ns = i % SENDERS;
+            int nr = i % RECEIVERS;
+            msg = receivers[nr].getNextMessage();
+            assertEquals(msg.getSubject(), SUBJECT + i + " from " + S1 + ns);
+            assertEquals(msg.getParam("index"), String.valueOf(i));
+        }
+        for (int i = 0; i < RECEIVERS; i++) {
+            msg = receivers[i].getNextMessage();
+            assertEquals(msg.getSubject(), SUBJECT + (100 + i));
+        }
+        Files.delete(snapshot);
+    }
+
+    @Test
+    public void testSnapshotAndLaterMessages() throws IOException {
+        int S1 = 101;
+        int R1 = 201;
+        Path snapshot = Files.createTempFile("md", ".snapshot");
+        Path copy = Files.createTempFile("md", ".snapshot");
+        Dispatcher.cleanup();
+        Dispatcher.init(jwtSecret, JPA_MANAGER, snapshot, 0);
+        Sender sender = createSender(S1, null);
+        for (int i = 0; i < 50; i++) {
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + i);
+            sender.sendMessage(msg, R1, false);
+        }
+        Dispatcher.checkpoint();
+        // Keep this snapshot, since cleanup() takes a final one
+        Files.copy(snapshot, copy, StandardCopyOption.REPLACE_EXISTING);
+
+        // Messages sent after the snapshot are restored from the persistence medium
+        for (int i = 50; i < 80; i++) {
+            Message msg = new Message();
+            msg.setSubject(SUBJECT + i);
+            sender.sendMessage(msg, R1, false);
+        }
+
+        Dispatcher.cleanup();
+        Files.move(copy, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        Dispatcher.init(jwtSecret, JPA_MANAGER, snapshot, 0);
+
+        Receiver receiver = createReceiver(R1);
+        for (int i = 0; i < 50; i++)
+            assertEquals(receiver.getNextMessage().getSubject(), SUBJECT + i);
+        // The later messages follow in serial order, which the persistence provider assigns when they are written
+        Set<String> expected = new HashSet<>();
+        Set<String> restored = new HashSet<>();
+        for (int i = 50; i < 80; i++) {
+            expected.add(SUBJECT + i);
+            restored.add(receiver.getNextMessage().getSubject());
+        }
+        assertEquals(restored, expected);
+        assertNull(receiver.getNextMessage());
+        Files.delete(snapshot);
+    }
 }